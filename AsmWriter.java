@@ -0,0 +1,601 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This module lowers the {@link VMCode} of a whole program straight to Hack assembly (<code>--format asm</code>),
+ * without writing and parsing VM text in between. The program starts with a bootstrap that sets <code>SP</code> to
+ * 256 and calls the first function of {@link Options#roots} that the program defines, followed by two shared
+ * routines:
+ * <ul>
+ *     <li><code>$CALL</code>, which pushes the return address in <code>R13</code> and the frame of the caller, sets
+ *     <code>ARG</code> to <code>SP</code> minus the count in <code>D</code> and <code>LCL</code> to <code>SP</code>,
+ *     and jumps to the address in <code>R14</code>; and</li>
+ *     <li><code>$RETURN</code>, which restores the frame of the caller and jumps back to it with the return value in
+ *     <code>D</code>.</li>
+ * </ul>
+ * A call site passes its return address in <code>D</code> and jumps to the function, whose entry sets up the call of
+ * <code>$CALL</code>, so each call site takes four instructions. A function whose calls do not all pass the same
+ * number of arguments, or that is called from one site only, is called with the setup at the call site instead.
+ * All return addresses and internal labels are numbered across the whole program.
+ * <p>
+ * The top of the stack is cached in the <code>D</code> register: after a push, the value is kept in <code>D</code>
+ * and only stored when the next push, a call, a jump or a label needs it in memory. A value that is pushed and then
+ * popped, operated on, tested or returned thus never touches the stack. An operand that can be addressed without
+ * <code>D</code>, such as a constant, a static, or a local with a small index, is combined with <code>D</code> directly,
+ * and a comparison followed by an <code>if-goto</code> becomes a single conditional jump. As in other Hack
+ * translators, <code>lt</code> and <code>gt</code> compare by subtraction, so they are wrong if the difference
+ * overflows.
+ *
+ * @author Maarten Derks
+ */
+class AsmWriter {
+
+    // indexes up to this one are addressed by incrementing A rather than by adding through D
+    private static final int CHAIN = 9;
+
+    private final StringBuilder out = new StringBuilder();
+    private final Map<String, Integer> arities = new HashMap<>();    // the argument count of every call, or -1
+    private final Map<String, Integer> sites = new HashMap<>();
+    private final Map<String, String> entries = new HashMap<>();     // the label after the entry of a function
+    private final String entry;
+    private int instructions;
+    private int labels;
+
+    private String className;
+    private String function;
+    private boolean cached;
+    private int skip;
+
+    /**
+     * Creates a writer for the given program, and writes the bootstrap and the shared routines.
+     *
+     * @param program the code of every class of the program
+     * @param roots   the functions where the program can start; the first one that the program defines is called
+     */
+    AsmWriter(List<VMCode> program, List<String> roots) {
+        for (VMCode code : program) {
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == VMCode.FUNCTION) arities.putIfAbsent(code.name(i), null);
+            }
+        }
+        entry = roots.stream().filter(arities::containsKey).findFirst().orElse(null);
+        if (entry == null) {
+            throw new IllegalArgumentException("None of the roots " + String.join(", ", roots)
+                    + " is defined by the program");
+        }
+        countCall(entry, 0);
+        for (VMCode code : program) {
+            for (int i = 0; i < code.size(); i++) {
+                if (code.opcode(i) == VMCode.CALL && arities.containsKey(code.name(i))) {
+                    countCall(code.name(i), code.count(i));
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> e : arities.entrySet()) {
+            if (e.getValue() != null && e.getValue() >= 0 && sites.get(e.getKey()) > 1) {
+                entries.put(e.getKey(), "$L." + labels++);
+            }
+        }
+
+        comment("bootstrap");
+        emit("@256");
+        emit("D=A");
+        emit("@SP");
+        emit("M=D");
+        call(entry, 0);
+        label("$HALT");
+        emit("@$HALT");
+        emit("0;JMP");
+
+        comment("$CALL: D = argument count + 5, R13 = return address, R14 = function");
+        label("$CALL");
+        emit("@R15");
+        emit("M=D");
+        emit("@R13");
+        emit("D=M");
+        pushD();
+        for (String register : new String[] {"LCL", "ARG", "THIS", "THAT"}) {
+            emit("@" + register);
+            emit("D=M");
+            pushD();
+        }
+        emit("@SP");
+        emit("D=M");
+        emit("@LCL");
+        emit("M=D");
+        emit("@R15");
+        emit("D=D-M");
+        emit("@ARG");
+        emit("M=D");
+        emit("@R14");
+        emit("A=M");
+        emit("0;JMP");
+
+        comment("$RETURN: D = return value");
+        label("$RETURN");
+        emit("@R13");
+        emit("M=D");
+        emit("@LCL");
+        emit("D=M");
+        emit("@R14");
+        emit("M=D");
+        emit("@5");
+        emit("A=D-A");
+        emit("D=M");
+        emit("@R15");
+        emit("M=D");
+        emit("@ARG");
+        emit("D=M");
+        emit("@SP");
+        emit("M=D");
+        for (String register : new String[] {"THAT", "THIS", "ARG", "LCL"}) {
+            emit("@R14");
+            emit("AM=M-1");
+            emit("D=M");
+            emit("@" + register);
+            emit("M=D");
+        }
+        emit("@R13");
+        emit("D=M");
+        emit("@R15");
+        emit("A=M");
+        emit("0;JMP");
+    }
+
+    private void countCall(String name, int nArgs) {
+        Integer arity = arities.get(name);
+        arities.put(name, arity == null || arity == nArgs ? nArgs : -1);
+        sites.merge(name, 1, Integer::sum);
+    }
+
+    /**
+     * Returns the number of Hack instructions written so far.
+     *
+     * @return the number of instructions
+     */
+    int size() {
+        return instructions;
+    }
+
+    /**
+     * Returns whether the given class defines the function that the bootstrap calls.
+     *
+     * @param  code the code of the class
+     * @return      true if the class defines the entry point
+     */
+    boolean definesEntry(VMCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) == VMCode.FUNCTION && code.name(i).equals(entry)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first function that the given class calls but that the program does not define.
+     *
+     * @param  code the code of the class
+     * @return      the function name, or <code>null</code> if the program defines all functions that the class calls
+     */
+    String undefined(VMCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) == VMCode.CALL && !arities.containsKey(code.name(i))) return code.name(i);
+        }
+        return null;
+    }
+
+    /**
+     * Translates the code of a class.
+     *
+     * @param  code the code of the class
+     * @return      the number of Hack instructions of the class
+     */
+    int translate(VMCode code) {
+        int start = instructions;
+        cached = false;
+        for (int i = 0; i < code.size(); i++) {
+            switch (code.opcode(i)) {
+                case VMCode.PUSH:
+                    if (i + 1 < code.size() && code.isConstant(i, i + 2)) {
+                        spill();
+                        loadConstant(code.constant(i, i + 2));
+                        cached = true;
+                        i++;
+                    } else if (i + 1 < code.size() && combine(code, i)) {
+                        i = skip;
+                    } else {
+                        spill();
+                        load(code.segment(i), code.index(i));
+                        cached = true;
+                    }
+                    break;
+                case VMCode.POP:
+                    fill();
+                    store(code.segment(i), code.index(i));
+                    cached = false;
+                    break;
+                case VMCode.ARITHMETIC:
+                    i = arithmetic(code, i);
+                    break;
+                case VMCode.LABEL:
+                    spill();
+                    label(function + "$" + code.name(i));
+                    break;
+                case VMCode.GOTO:
+                    spill();
+                    emit("@" + function + "$" + code.name(i));
+                    emit("0;JMP");
+                    break;
+                case VMCode.IF_GOTO:
+                    fill();
+                    emit("@" + function + "$" + code.name(i));
+                    emit("D;JNE");
+                    cached = false;
+                    break;
+                case VMCode.CALL:
+                    spill();
+                    call(code.name(i), code.count(i));
+                    cached = true;
+                    break;
+                case VMCode.FUNCTION:
+                    function(code.name(i), code.count(i));
+                    break;
+                case VMCode.RETURN:
+                    fill();
+                    emit("@$RETURN");
+                    emit("0;JMP");
+                    cached = false;
+                    break;
+            }
+        }
+        return instructions - start;
+    }
+
+    /**
+     * Writes the program.
+     *
+     * @param  channel the output channel
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.US_ASCII));
+        while (bytes.hasRemaining()) channel.write(bytes);
+    }
+
+    private void function(String name, int nVars) {
+        spill();
+        function = name;
+        className = name.substring(0, name.indexOf('.'));
+        comment("function " + name + " " + nVars);
+        label(name);
+        String body = entries.get(name);
+        if (body != null) {
+            emit("@R13");
+            emit("M=D");
+            emit("@" + body);
+            emit("D=A");
+            emit("@R14");
+            emit("M=D");
+            emit("@" + (arities.get(name) + 5));
+            emit("D=A");
+            emit("@$CALL");
+            emit("0;JMP");
+            label(body);
+        }
+        if (nVars == 1) {
+            emit("@SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=0");
+        } else if (nVars == 2) {
+            emit("@SP");
+            emit("A=M");
+            emit("M=0");
+            emit("A=A+1");
+            emit("M=0");
+            emit("D=A+1");
+            emit("@SP");
+            emit("M=D");
+        } else if (nVars > 2) {
+            String loop = "$L." + labels++;
+            emit("@" + nVars);
+            emit("D=A");
+            label(loop);
+            emit("@SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=0");
+            emit("D=D-1");
+            emit("@" + loop);
+            emit("D;JGT");
+        }
+        cached = false;
+    }
+
+    private void call(String name, int nArgs) {
+        String ret = "$RET." + labels++;
+        emit("@" + ret);
+        emit("D=A");
+        if (!entries.containsKey(name)) {
+            emit("@R13");
+            emit("M=D");
+            emit("@" + name);
+            emit("D=A");
+            emit("@R14");
+            emit("M=D");
+            emit("@" + (nArgs + 5));
+            emit("D=A");
+            emit("@$CALL");
+        } else {
+            emit("@" + name);
+        }
+        emit("0;JMP");
+        label(ret);
+    }
+
+    /**
+     * Combines a push with the binary operation after it, if the value of the push can be addressed without
+     * <code>D</code>, and sets {@link #skip} to the last instruction combined.
+     */
+    private boolean combine(VMCode code, int i) {
+        if (code.opcode(i + 1) != VMCode.ARITHMETIC || !addressable(code.segment(i), code.index(i))) return false;
+        Command command = code.command(i + 1);
+        if (command == Command.NEG || command == Command.NOT) return false;
+        fill();
+        Segment segment = code.segment(i);
+        int index = code.index(i);
+        boolean constant = segment == Segment.CONSTANT;
+        if (constant && index == 1 && (command == Command.ADD || command == Command.SUB)) {
+            emit(command == Command.ADD ? "D=D+1" : "D=D-1");
+            skip = i + 1;
+            return true;
+        }
+        address(segment, index);
+        String operand = constant ? "A" : "M";
+        switch (command) {
+            case ADD:
+                emit("D=D+" + operand);
+                break;
+            case SUB:
+                emit("D=D-" + operand);
+                break;
+            case AND:
+                emit("D=D&" + operand);
+                break;
+            case OR:
+                emit("D=D|" + operand);
+                break;
+            default:
+                emit("D=D-" + operand);
+                skip = compare(code, i + 1, command);
+                return true;
+        }
+        skip = i + 1;
+        return true;
+    }
+
+    private int arithmetic(VMCode code, int i) {
+        Command command = code.command(i);
+        fill();
+        switch (command) {
+            case NEG:
+                emit("D=-D");
+                return i;
+            case NOT:
+                // D is only 0 or -1 after a comparison; otherwise not is bitwise, and if-goto jumps on any nonzero D
+                if (i > 0 && isComparison(code, i - 1) && i + 1 < code.size()
+                        && code.opcode(i + 1) == VMCode.IF_GOTO) {
+                    emit("@" + function + "$" + code.name(i + 1));
+                    emit("D;JEQ");
+                    cached = false;
+                    return i + 1;
+                }
+                emit("D=!D");
+                return i;
+            default:
+                emit("@SP");
+                emit("AM=M-1");
+                switch (command) {
+                    case ADD:
+                        emit("D=D+M");
+                        return i;
+                    case SUB:
+                        emit("D=M-D");
+                        return i;
+                    case AND:
+                        emit("D=D&M");
+                        return i;
+                    case OR:
+                        emit("D=D|M");
+                        return i;
+                    default:
+                        emit("D=M-D");
+                        return compare(code, i, command);
+                }
+        }
+    }
+
+    /**
+     * Turns the difference of the operands of a comparison in <code>D</code> into a jump, if an <code>if-goto</code>
+     * (or <code>not</code> and <code>if-goto</code>) follows, or into <code>true</code> or <code>false</code>.
+     *
+     * @return the index of the last instruction handled
+     */
+    private int compare(VMCode code, int i, Command command) {
+        String jump = command == Command.EQ ? "JEQ" : command == Command.LT ? "JLT" : "JGT";
+        String inverse = command == Command.EQ ? "JNE" : command == Command.LT ? "JGE" : "JLE";
+        if (i + 1 < code.size() && code.opcode(i + 1) == VMCode.IF_GOTO) {
+            emit("@" + function + "$" + code.name(i + 1));
+            emit("D;" + jump);
+            cached = false;
+            return i + 1;
+        }
+        if (i + 2 < code.size() && code.opcode(i + 1) == VMCode.ARITHMETIC && code.command(i + 1) == Command.NOT
+                && code.opcode(i + 2) == VMCode.IF_GOTO) {
+            emit("@" + function + "$" + code.name(i + 2));
+            emit("D;" + inverse);
+            cached = false;
+            return i + 2;
+        }
+        String yes = "$L." + labels++;
+        String end = "$L." + labels++;
+        emit("@" + yes);
+        emit("D;" + jump);
+        emit("D=0");
+        emit("@" + end);
+        emit("0;JMP");
+        label(yes);
+        emit("D=-1");
+        label(end);
+        cached = true;
+        return i;
+    }
+
+    private static boolean isComparison(VMCode code, int i) {
+        return code.opcode(i) == VMCode.ARITHMETIC && (code.command(i) == Command.EQ || code.command(i) == Command.GT
+                || code.command(i) == Command.LT);
+    }
+
+    private boolean addressable(Segment segment, int index) {
+        return !indirect(segment) || index <= CHAIN;
+    }
+
+    private static boolean indirect(Segment segment) {
+        switch (segment) {
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sets <code>A</code> to the address of the given variable, or to the given constant, without using
+     * <code>D</code>. Only for {@link #addressable} variables.
+     */
+    private void address(Segment segment, int index) {
+        switch (segment) {
+            case CONSTANT:
+                emit("@" + index);
+                break;
+            case STATIC:
+                emit("@" + className + "." + index);
+                break;
+            case TEMP:
+                emit("@" + (5 + index));
+                break;
+            case POINTER:
+                emit(index == 0 ? "@THIS" : "@THAT");
+                break;
+            default:
+                emit("@" + base(segment));
+                emit(index == 0 ? "A=M" : "A=M+1");
+                for (int k = 1; k < index; k++) emit("A=A+1");
+        }
+    }
+
+    private void load(Segment segment, int index) {
+        if (segment == Segment.CONSTANT) {
+            loadConstant(index);
+        } else if (!indirect(segment) || index <= 2) {
+            address(segment, index);
+            emit("D=M");
+        } else {
+            emit("@" + base(segment));
+            emit("D=M");
+            emit("@" + index);
+            emit("A=D+A");
+            emit("D=M");
+        }
+    }
+
+    private void loadConstant(int value) {
+        if (value >= -1 && value <= 1) {
+            emit("D=" + value);
+        } else if (value == Short.MIN_VALUE) {
+            emit("@" + Short.MAX_VALUE);
+            emit("D=!A");
+        } else {
+            emit("@" + Math.abs(value));
+            emit(value < 0 ? "D=-A" : "D=A");
+        }
+    }
+
+    private void store(Segment segment, int index) {
+        if (addressable(segment, index)) {
+            address(segment, index);
+            emit("M=D");
+        } else {
+            emit("@R15");
+            emit("M=D");
+            emit("@" + base(segment));
+            emit("D=M");
+            emit("@" + index);
+            emit("D=D+A");
+            emit("@R13");
+            emit("M=D");
+            emit("@R15");
+            emit("D=M");
+            emit("@R13");
+            emit("A=M");
+            emit("M=D");
+        }
+    }
+
+    private static String base(Segment segment) {
+        switch (segment) {
+            case LOCAL:
+                return "LCL";
+            case ARGUMENT:
+                return "ARG";
+            default:
+                return segment.toString();
+        }
+    }
+
+    /**
+     * Stores the cached top of the stack, if any, on the stack.
+     */
+    private void spill() {
+        if (!cached) return;
+        pushD();
+        cached = false;
+    }
+
+    /**
+     * Pops the top of the stack into <code>D</code>, unless it is cached there already.
+     */
+    private void fill() {
+        if (cached) return;
+        emit("@SP");
+        emit("AM=M-1");
+        emit("D=M");
+        cached = true;
+    }
+
+    private void pushD() {
+        emit("@SP");
+        emit("AM=M+1");
+        emit("A=A-1");
+        emit("M=D");
+    }
+
+    private void emit(String instruction) {
+        out.append(instruction).append('\n');
+        instructions++;
+    }
+
+    private void label(String label) {
+        out.append('(').append(label).append(")\n");
+    }
+
+    private void comment(String comment) {
+        out.append("// ").append(comment).append('\n');
+    }
+}
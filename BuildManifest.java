@@ -0,0 +1,116 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This module keeps track of the inputs and outputs of previous builds in a manifest file in the output folder. For
+ * each <i>Xxx</i><code>.jack</code> file, the manifest records the content hash of the source and of the
+ * <i>Xxx</i><code>.vm</code> file produced from it. A file whose source and output are unchanged since the last
+ * build does not need to be compiled again. The manifest also records the compiler version and options; if either
+ * differs, all entries are discarded.
+ * <p>
+ * The manifest is a text file with a header line and one line per source file:
+ * <pre>
+ * jackc-manifest 1 <i>version</i> <i>options</i>
+ * <i>source-hash</i> <i>output-hash</i> <i>Xxx</i>.jack
+ * </pre>
+ *
+ * @author Maarten Derks
+ */
+class BuildManifest {
+
+    static final String FILE_NAME = ".jackc-manifest";
+
+    private final File file;
+    private final String header;
+    private final Map<String, String[]> entries = new TreeMap<>();
+    private boolean changed;
+
+    /**
+     * Loads the manifest of the given output folder, or creates an empty one if there is no manifest yet or it was
+     * written by a different compiler version or with different options.
+     *
+     * @param dir     output folder
+     * @param options fingerprint of the compiler version and the options that affect the output
+     */
+    BuildManifest(File dir, String options) throws IOException {
+        file = new File(dir, FILE_NAME);
+        header = "jackc-manifest 1 " + options;
+        if (file.isFile()) {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length == 3) entries.put(fields[2], new String[]{fields[0], fields[1]});
+                }
+            } else {
+                changed = true;
+            }
+        }
+    }
+
+    /**
+     * Is the output of the given source up to date? That is the case if the manifest has an entry for the source
+     * with the same source hash, and the output file exists with the recorded output hash.
+     *
+     * @param  source     the source file
+     * @param  sourceHash the content hash of the source file
+     * @param  out        the output file
+     * @return            boolean
+     */
+    synchronized boolean isUpToDate(File source, String sourceHash, File out) throws IOException {
+        String[] entry = entries.get(source.getName());
+        return entry != null && entry[0].equals(sourceHash) && out.isFile()
+                && entry[1].equals(hash(Files.readAllBytes(out.toPath())));
+    }
+
+    /**
+     * Records the hashes of a compiled source file.
+     *
+     * @param source     the source file
+     * @param sourceHash the content hash of the source file
+     * @param outputHash the content hash of the output file
+     */
+    synchronized void record(File source, String sourceHash, String outputHash) {
+        String[] previous = entries.put(source.getName(), new String[]{sourceHash, outputHash});
+        if (previous == null || !previous[0].equals(sourceHash) || !previous[1].equals(outputHash)) changed = true;
+    }
+
+    /**
+     * Writes the manifest back to the output folder, if anything changed.
+     */
+    synchronized void save() throws IOException {
+        if (!changed) return;
+        StringBuilder sb = new StringBuilder(header).append('\n');
+        for (Map.Entry<String, String[]> e : entries.entrySet()) {
+            sb.append(e.getValue()[0]).append(' ').append(e.getValue()[1]).append(' ').append(e.getKey()).append('\n');
+        }
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        changed = false;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the given bytes, as a hexadecimal string.
+     *
+     * @param  bytes the content to hash
+     * @return       the hash
+     */
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This module writes all classes of a build into a single bundle file (<code>--bundle</code> <i>file</i>), rather
+ * than into one output file per class. The classes are in source file order, the order of the results of
+ * {@link JackCompiler#build}, so the bundle does not depend on the number of workers. With <code>--format vm</code>,
+ * the bundle is the VM text of all classes, each preceded by a line <code>//</code> <i>Xxx</i><code>.vm</code>: the
+ * <code>static</code> segment belongs to the file of a class, so tools must split the bundle at these lines. With
+ * <code>--format vmb</code>, it is an archive with a table of contents, followed by the <code>.vmb</code> encoding of
+ * each class (see {@link VMCode}):
+ * <pre>
+ * "JVMA" version:u1 classes:u4 (name:utf offset:u8 length:u4)* (class:vmb)*
+ * </pre>
+ * where the offset of a class counts from the end of the table, and numbers are big-endian.
+ * <p>
+ * The bundle is written with a single gathering write to a temporary file, which is forced to disk once and then
+ * moved over the bundle, so readers never see a partly written bundle.
+ *
+ * @author Maarten Derks
+ */
+class Bundle {
+
+    private static final byte[] MAGIC = {'J', 'V', 'M', 'A'};
+    private static final int VERSION = 1;
+
+    /**
+     * Writes the output of the given classes into a bundle.
+     *
+     * @param file    the bundle file
+     * @param names   the class names, in bundle order
+     * @param outputs the output of each class in the format of the options
+     * @param archive true to write an archive of <code>.vmb</code> classes, false to write VM text
+     */
+    static void write(File file, List<String> names, List<byte[]> outputs, boolean archive) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        if (archive) {
+            ByteArrayOutputStream toc = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(toc);
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(names.size());
+            long offset = 0;
+            for (int i = 0; i < names.size(); i++) {
+                dos.writeUTF(names.get(i));
+                dos.writeLong(offset);
+                dos.writeInt(outputs.get(i).length);
+                offset += outputs.get(i).length;
+            }
+            buffers.add(ByteBuffer.wrap(toc.toByteArray()));
+        }
+        for (int i = 0; i < names.size(); i++) {
+            if (!archive) {
+                buffers.add(ByteBuffer.wrap(("// " + names.get(i) + ".vm\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            buffers.add(ByteBuffer.wrap(outputs.get(i)));
+        }
+        long size = 0;
+        for (ByteBuffer buffer : buffers) size += buffer.remaining();
+
+        Path path = file.getAbsoluteFile().toPath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] bs = buffers.toArray(new ByteBuffer[0]);
+            for (long written = 0; written < size; ) written += ch.write(bs);
+            ch.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the classes of an archive bundle. A table entry outside the file, or a malformed class, is an error.
+     *
+     * @param  file the bundle file
+     * @return      the code of each class by class name, in bundle order
+     * @throws IOException if the file is not a bundle archive, is cut short, or is malformed
+     */
+    static Map<String, VMCode> read(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || dis.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a bundle archive");
+        }
+        int classes = dis.readInt();
+        if (classes < 0 || classes > bytes.length) throw new IOException("Malformed bundle archive");
+        String[] names = new String[classes];
+        long[] offsets = new long[classes];
+        int[] lengths = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            names[i] = dis.readUTF();
+            offsets[i] = dis.readLong();
+            lengths[i] = dis.readInt();
+        }
+        int start = bytes.length - dis.available();
+        Map<String, VMCode> code = new LinkedHashMap<>();
+        for (int i = 0; i < classes; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > bytes.length - start) {
+                throw new IOException("Malformed bundle archive: " + names[i] + " is outside the file");
+            }
+            code.put(names[i], VMCode.readBinary(
+                    new ByteArrayInputStream(bytes, start + (int) offsets[i], lengths[i])));
+        }
+        return code;
+    }
+}
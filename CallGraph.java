@@ -0,0 +1,92 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This module finds the functions of a program that can be called, for whole-program dead subroutine elimination.
+ * The {@link VMCode} of every class of the program is added to the graph, which records for each function the
+ * functions that it calls. The functions that can be reached from a set of roots, such as <code>Main.main</code>, are
+ * live; all other functions can be removed from the output, because the VM language has no way to call a function
+ * other than by its name in a <code>call</code> instruction. Calls of functions that are not part of the program,
+ * such as those of the Jack OS, are ignored.
+ *
+ * @author Maarten Derks
+ */
+class CallGraph {
+
+    private final Map<String, List<String>> callees = new HashMap<>();
+
+    /**
+     * Adds the functions of a class, and the calls that they make, to the graph.
+     *
+     * @param code the code of the class
+     */
+    void add(VMCode code) {
+        List<String> calls = null;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) == VMCode.FUNCTION) {
+                calls = new ArrayList<>();
+                callees.put(code.name(i), calls);
+            } else if (code.opcode(i) == VMCode.CALL && calls != null) {
+                calls.add(code.name(i));
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given function is defined in the program.
+     *
+     * @param  function the function name, of the form <i>Xxx.yyy</i>
+     * @return          true if a class of the graph defines the function
+     */
+    boolean contains(String function) {
+        return callees.containsKey(function);
+    }
+
+    /**
+     * Returns the functions of the program that can be reached from the given roots, including the roots.
+     *
+     * @param  roots the names of the functions where the program starts
+     * @return       the live functions
+     */
+    Set<String> reachable(Collection<String> roots) {
+        Set<String> live = new HashSet<>();
+        Deque<String> work = new ArrayDeque<>();
+        for (String root : roots) {
+            if (callees.containsKey(root) && live.add(root)) work.push(root);
+        }
+        while (!work.isEmpty()) {
+            for (String callee : callees.get(work.pop())) {
+                if (callees.containsKey(callee) && live.add(callee)) work.push(callee);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Returns a copy of the code of a class with only its live functions.
+     *
+     * @param  code    the code of the class
+     * @param  live    the live functions
+     * @param  removed the list to add the names of the removed functions to
+     * @return         the code of the live functions
+     */
+    static VMCode retain(VMCode code, Set<String> live, List<String> removed) {
+        VMCode out = new VMCode();
+        boolean keep = true;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) == VMCode.FUNCTION) {
+                keep = live.contains(code.name(i));
+                if (!keep) removed.add(code.name(i));
+            }
+            if (keep) out.copy(code, i);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,429 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * This module compiles the {@link SyntaxTree} of a class, built by the {@link JackParser}, into {@link VMCode}. It
+ * generates the same code as the {@link CompilationEngine}, including the optimizations of {@link Options#optimize},
+ * but as a separate pass over a complete tree, so that it can look at a whole subroutine or class before emitting
+ * its code: for example, it knows whether a subroutine uses pooled string constants before compiling its body.
+ *
+ * @author Maarten Derks
+ */
+class CodeGenerator {
+
+    private final SyntaxTree tree;
+    private final SymbolTable cst, sst;
+    private VMCode code = new VMCode();
+    private final boolean optimize, poolStrings;
+    private final Map<String, Integer> strings = new LinkedHashMap<>();
+    private int instructionsSaved, callsSaved, callsReduced;
+
+    private String className, functionName;
+    private int ifIndex, whileIndex;
+    private Consumer<VMCode> sink;
+    private SignatureIndex index;
+    private final List<Frame> frames = new ArrayList<>();
+    private int depth;                                      // the number of frames in use
+
+    /**
+     * Creates a new code generator for the given tree.
+     *
+     * @param tree    the syntax tree of a class
+     * @param options the compiler options
+     */
+    CodeGenerator(SyntaxTree tree, Options options) {
+        this.tree = tree;
+        optimize = options.optimize;
+        poolStrings = options.optimize && !options.mutableStrings;
+        cst = new SymbolTable();
+        sst = new SymbolTable(cst);
+    }
+
+    /**
+     * Compiles the class.
+     *
+     * @return the code
+     */
+    VMCode generate() {
+        int root = tree.root();
+        className = tree.name(tree.a(root));
+        for (int node = tree.first(root); node >= 0; node = tree.next(node)) {
+            if (tree.kind(node) == SyntaxTree.VAR_DEC) {
+                define(cst, node);
+            } else {
+                generateSubroutine(node);
+                flush();
+            }
+        }
+        if (!strings.isEmpty()) {
+            int start = code.size();
+            code.function(className + ".$strings", 0);
+            for (Map.Entry<String, Integer> e : strings.entrySet()) {
+                CompilationEngine.compileString(code, e.getKey());
+                code.pop(Segment.STATIC, cst.varCount(Kind.STATIC) + e.getValue());
+                callsSaved -= e.getKey().length() + 1;
+            }
+            code.push(Segment.CONSTANT, 0);
+            code.ret();
+            instructionsSaved -= code.size() - start;
+            flush();
+        }
+        return code;
+    }
+
+    /**
+     * Hands the code of each function to the given sink as soon as it is generated, as
+     * {@link CompilationEngine#stream} does.
+     *
+     * @param sink the sink, which is called on the thread of the generator
+     */
+    void stream(Consumer<VMCode> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Resolves and checks the calls of the class with the given index, as {@link CompilationEngine#resolve} does. Errors
+     * give the position of the "(" of the call, as those of the engine do.
+     *
+     * @param index the signatures of the classes of the build, or <code>null</code>
+     */
+    void resolve(SignatureIndex index) {
+        this.index = index;
+    }
+
+    private void flush() {
+        if (sink == null) return;
+        sink.accept(code);
+        code = new VMCode();
+    }
+
+    /**
+     * Returns the number of instructions that the optimizations saved, as {@link CompilationEngine#instructionsSaved}.
+     *
+     * @return the number of instructions saved
+     */
+    int instructionsSaved() {
+        return instructionsSaved;
+    }
+
+    /**
+     * Returns the number of <code>call</code> instructions that the optimizations saved.
+     *
+     * @return the number of calls saved
+     */
+    int callsSaved() {
+        return callsSaved;
+    }
+
+    /**
+     * Returns the number of calls that the optimizations replaced by cheaper instructions, as
+     * {@link CompilationEngine#callsReduced}.
+     *
+     * @return the number of calls reduced
+     */
+    int callsReduced() {
+        return callsReduced;
+    }
+
+    private void define(SymbolTable table, int node) {
+        table.define(tree.name(tree.a(node)), tree.name(tree.b(node) >>> 3), Kind.values()[tree.b(node) & 7]);
+    }
+
+    private void generateSubroutine(int node) {
+        sst.reset();
+        ifIndex = whileIndex = 0;
+        Keyword type = Keyword.values()[tree.b(node)];
+        if (type == Keyword.METHOD) {
+            sst.define("this", className, Kind.ARG);
+        }
+        int body = tree.first(node);
+        for (; tree.kind(body) == SyntaxTree.VAR_DEC; body = tree.next(body)) {
+            define(sst, body);
+        }
+        functionName = className + "." + tree.name(tree.a(node));
+        code.function(functionName, sst.varCount(Kind.VAR));
+        if (poolStrings && tree.contains(body, SyntaxTree.STRING)) {
+            code.push(Segment.STATIC, cst.varCount(Kind.STATIC));
+            code.ifGoTo("STRINGS_READY");
+            code.call(className + ".$strings", 0);
+            code.pop(Segment.TEMP, 0);
+            code.label("STRINGS_READY");
+            instructionsSaved -= 5;
+            callsSaved--;
+        }
+        switch (type) {
+            case CONSTRUCTOR:
+                code.push(Segment.CONSTANT, cst.varCount(Kind.FIELD));
+                code.call("Memory.alloc", 1);
+                code.pop(Segment.POINTER, 0);
+                break;
+            case METHOD:
+                code.push(Segment.ARGUMENT, 0);
+                code.pop(Segment.POINTER, 0);
+                break;
+        }
+        generateStatements(body);
+    }
+
+    private void generateStatements(int block) {
+        for (int node = tree.first(block); node >= 0; node = tree.next(node)) {
+            int child = tree.first(node);
+            switch (tree.kind(node)) {
+                case SyntaxTree.LET:
+                    int variable = sst.lookup(tree.name(tree.a(node)));
+                    if (tree.b(node) != 0) {
+                        generateExpression(child);
+                        pushVariable(variable);
+                        code.arithmetic(Command.ADD);
+                        generateExpression(tree.next(child));
+                        code.pop(Segment.TEMP, 0);
+                        code.pop(Segment.POINTER, 1);
+                        code.push(Segment.TEMP, 0);
+                        code.pop(Segment.THAT, 0);
+                    } else {
+                        generateExpression(child);
+                        if (variable >= 0) {
+                            code.pop(SymbolTable.segment(variable), SymbolTable.index(variable));
+                        }
+                    }
+                    break;
+                case SyntaxTree.IF:
+                    int i = ifIndex++;
+                    generateExpression(child);
+                    code.ifGoTo("IF_TRUE" + i);
+                    code.goTo("IF_FALSE" + i);
+                    code.label("IF_TRUE" + i);
+                    int then = tree.next(child);
+                    generateStatements(then);
+                    if (tree.next(then) >= 0) {
+                        code.goTo("IF_END" + i);
+                        code.label("IF_FALSE" + i);
+                        generateStatements(tree.next(then));
+                        code.label("IF_END" + i);
+                    } else {
+                        code.label("IF_FALSE" + i);
+                    }
+                    break;
+                case SyntaxTree.WHILE:
+                    int w = whileIndex++;
+                    code.label("WHILE_EXP" + w);
+                    generateExpression(child);
+                    code.arithmetic(Command.NOT);
+                    code.ifGoTo("WHILE_END" + w);
+                    generateStatements(tree.next(child));
+                    code.goTo("WHILE_EXP" + w);
+                    code.label("WHILE_END" + w);
+                    break;
+                case SyntaxTree.DO:
+                    generateExpression(child);
+                    code.pop(Segment.TEMP, 0);
+                    break;
+                case SyntaxTree.RETURN:
+                    if (child >= 0) {
+                        generateExpression(child);
+                    } else {
+                        code.push(Segment.CONSTANT, 0);
+                    }
+                    code.ret();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Generates the code of an expression. The tree of the expression is walked with an explicit stack of
+     * {@link Frame frames} rather than by recursion, so that the depth of an expression is only limited by the heap.
+     */
+    private void generateExpression(int root) {
+        int base = depth;
+        enter(root);
+        while (depth > base) {
+            Frame f = frames.get(depth - 1);
+            int child = f.child;
+            if (child < 0) {
+                depth--;
+                exit(f);
+            } else {
+                f.child = tree.next(child);
+                f.right = code.size();
+                f.count++;
+                enter(child);
+            }
+        }
+    }
+
+    /**
+     * A node of an expression whose children are being generated.
+     */
+    private static class Frame {
+        int node;
+        int child;                  // the next child to generate, or -1
+        int start;                  // index of the first instruction of the node
+        int right;                  // index of the first instruction of the last child
+        int count;                  // the number of values pushed: the object of a method call, and the children
+        String name;                // the full name of the subroutine called
+        boolean checked;            // false if the class of the subroutine called is a guess
+    }
+
+    /**
+     * Generates the code of a leaf of an expression, or else the code before the children of a node and a new frame
+     * for it.
+     */
+    private void enter(int node) {
+        switch (tree.kind(node)) {
+            case SyntaxTree.INT:
+                code.push(Segment.CONSTANT, tree.a(node));
+                return;
+            case SyntaxTree.STRING:
+                String s = tree.name(tree.a(node));
+                if (poolStrings) {
+                    Integer index = strings.get(s);
+                    if (index == null) {
+                        index = strings.size();
+                        strings.put(s, index);
+                    }
+                    code.push(Segment.STATIC, cst.varCount(Kind.STATIC) + index);
+                    instructionsSaved += 2 * s.length() + 1;
+                    callsSaved += s.length() + 1;
+                } else {
+                    CompilationEngine.compileString(code, s);
+                }
+                return;
+            case SyntaxTree.KEYWORD:
+                switch (Keyword.values()[tree.a(node)]) {
+                    case TRUE:
+                        code.push(Segment.CONSTANT, 0);
+                        code.arithmetic(Command.NOT);
+                        break;
+                    case FALSE:
+                    case NULL:
+                        code.push(Segment.CONSTANT, 0);
+                        break;
+                    case THIS:
+                        code.push(Segment.POINTER, 0);
+                        break;
+                }
+                return;
+            case SyntaxTree.VARIABLE:
+                pushVariable(sst.lookup(tree.name(tree.a(node))));
+                return;
+        }
+        if (depth == frames.size()) frames.add(new Frame());
+        Frame f = frames.get(depth++);
+        f.node = node;
+        f.child = tree.first(node);
+        f.start = code.size();
+        f.count = 0;
+        if (tree.kind(node) == SyntaxTree.CALL) enterCall(f);
+    }
+
+    /**
+     * Generates the code of a node of an expression after its children.
+     */
+    private void exit(Frame f) {
+        int node = f.node;
+        switch (tree.kind(node)) {
+            case SyntaxTree.ARRAY:
+                pushVariable(sst.lookup(tree.name(tree.a(node))));
+                code.arithmetic(Command.ADD);
+                code.pop(Segment.POINTER, 1);
+                code.push(Segment.THAT, 0);
+                break;
+            case SyntaxTree.CALL:
+                String problem = index != null && f.checked ? index.checkArguments(f.name, f.count) : null;
+                if (problem != null) throw error(problem, node);
+                code.call(f.name, f.count);
+                break;
+            case SyntaxTree.BINARY:
+                int start = f.start, right = f.right;
+                char op = (char) tree.a(node);
+                if (optimize && code.isConstant(start, right) && code.isConstant(right, code.size())) {
+                    Integer value = CompilationEngine.fold(op, code.constant(start, right),
+                            code.constant(right, code.size()));
+                    if (value != null) {
+                        int size = code.size();
+                        code.truncate(start);
+                        code.pushConstant(value);
+                        instructionsSaved += size + 1 - code.size();
+                        if (op == '*' || op == '/') callsSaved++;
+                        break;
+                    }
+                }
+                int end = code.size();
+                if (optimize && StrengthReducer.reduce(code, start, right, op)) {
+                    instructionsSaved += end + 1 - code.size();
+                    callsSaved++;
+                    callsReduced++;
+                    break;
+                }
+                CompilationEngine.compileOperator(code, op);
+                break;
+            case SyntaxTree.UNARY:
+                start = f.start;
+                boolean neg = tree.a(node) == '-';
+                if (optimize && code.isConstant(start, code.size())) {
+                    int x = code.constant(start, code.size()), size = code.size();
+                    code.truncate(start);
+                    code.pushConstant((short) (neg ? -x : ~x));
+                    instructionsSaved += size + 1 - code.size();
+                    break;
+                }
+                code.arithmetic(neg ? Command.NEG : Command.NOT);
+                break;
+        }
+    }
+
+    /**
+     * Generates the code of a call before its arguments: pushes the object of a method, and checks the subroutine
+     * with the index.
+     */
+    private void enterCall(Frame f) {
+        int node = f.node;
+        String name = tree.name(tree.b(node));
+        String type;
+        boolean checked = true;
+        if (tree.a(node) < 0) {
+            type = className;
+            if (!isFunction(name)) {
+                code.push(Segment.POINTER, 0);
+                f.count++;
+            }
+        } else {
+            String receiver = tree.name(tree.a(node));
+            int variable = sst.lookup(receiver);
+            if (variable >= 0) {
+                pushVariable(variable);
+                f.count++;
+                type = sst.lookupType(receiver);
+            } else if (Character.isUpperCase(receiver.charAt(0)) || index != null && index.get(receiver) != null) {
+                type = receiver;
+            } else {
+                type = className;
+                checked = false;
+            }
+        }
+        f.checked = checked;
+        String problem = index != null && checked ? index.check(type, name, f.count > 0) : null;
+        if (problem != null) throw error(problem, node);
+        f.name = type + "." + name;
+    }
+
+    private void pushVariable(int variable) {
+        if (variable >= 0) {
+            code.push(SymbolTable.segment(variable), SymbolTable.index(variable));
+        }
+    }
+
+    private boolean isFunction(String name) {
+        SignatureIndex.Signature signature = index != null ? index.get(className) : null;
+        SignatureIndex.Subroutine subroutine = signature != null ? signature.subroutines.get(name) : null;
+        return subroutine != null && subroutine.kind != Keyword.METHOD;
+    }
+
+    private IllegalStateException error(String problem, int call) {
+        return new IllegalStateException(problem + " at line " + tree.line(call) + ", column " + tree.column(call));
+    }
+}
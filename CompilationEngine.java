@@ -1,13 +1,34 @@
 import java.io.File;
-import java.util.regex.Pattern;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
- * The compilation engine gets its input from a {@link JackTokenizer} and emits its output to an output file. The output
+ * The compilation engine gets its input from a {@link JackTokenizer} and emits its output into {@link VMCode}, which is
+ * written to an output file by a {@link VMWriter} once the class is complete. The output
  * is generated by a series of <code>compile</code><i>xxx</i> routines, each designed to handle the compilation of a
  * specific Jack language construct <i>xxx</i>. The contract between routines is that each <code>compile</code><i>xxx</i>
  * routine should get from the input, and handle, all the tokens that make up <i>xxx</i>, advance the tokenizer exactly
  * beyond these tokens, and output the parsing of <i>xxx</i>. As a rule, each <code>compile</code><i>xxx</i> is called
  * only if the current token is <i>xxx</i>.
+ * <p>
+ * Expected tokens are checked with {@link JackTokenizer#expect(char)} and its variants, which throw an
+ * {@link IllegalStateException} that gives what was expected and the line and column of the token.
+ * <p>
+ * If the engine optimizes ({@link Options#optimize}), operators and unary operators whose operands are constants are
+ * folded into a single constant, with the 16-bit semantics of the Hack platform and the Jack OS, and multiplications
+ * and divisions by constants are done without calling the OS where that is cheaper (see {@link StrengthReducer}).
+ * String constants are
+ * pooled, unless {@link Options#mutableStrings} is set: each distinct string constant of the class is built once, by a
+ * generated function <i>Xxx</i><code>.$strings</code>, into a hidden static variable that follows the static
+ * variables of the class. Every subroutine that uses string constants calls it on entry if the first of these
+ * variables is still <code>null</code>.
+ * <p>
+ * With {@link #stream}, the code of each subroutine is handed on as soon as the subroutine is compiled, so that it can
+ * be optimized and written while the engine compiles the rest of the class.
  *
  * @author Maarten Derks
  */
@@ -16,9 +37,18 @@ class CompilationEngine {
     private final JackTokenizer jt;
     private final SymbolTable cst, sst;
     private final VMWriter vmw;
+    private VMCode code = new VMCode();
+    private final boolean optimize, poolStrings;
+    private final Map<String, Integer> strings = new LinkedHashMap<>();
+    private final Deque<Nested> enclosing = new ArrayDeque<>();    // the expressions that enclose the current one
+    private int instructionsSaved, callsSaved, callsReduced;
 
-    private String className, subroutineName, subroutineType;
+    private String className, subroutineName;
+    private Keyword subroutineType;
     private int ifIndex, whileIndex;
+    private boolean usesStrings;
+    private Consumer<VMCode> sink;
+    private SignatureIndex index;
 
     /**
      * Creates a new compilation engine with the given input and output.
@@ -27,10 +57,66 @@ class CompilationEngine {
      * @param out Output stream/file
      */
     CompilationEngine(File in, File out) throws Exception {
-        jt = new JackTokenizer(in);
-        vmw = new VMWriter(out);
+        this(new JackTokenizer(in), new VMWriter(out));
+    }
+
+    /**
+     * Creates a new compilation engine that reads the given file and writes the VM code to the given stream.
+     *
+     * @param in  Input file
+     * @param out Output stream
+     */
+    CompilationEngine(File in, OutputStream out) throws Exception {
+        this(new JackTokenizer(in), new VMWriter(out));
+    }
+
+    /**
+     * Creates a new compilation engine that gets its input from the given tokenizer and only emits its output into
+     * {@link #code()}.
+     *
+     * @param jt the tokenizer
+     */
+    CompilationEngine(JackTokenizer jt) {
+        this(jt, null, new Options());
+    }
+
+    /**
+     * Creates a new compilation engine that gets its input from the given tokenizer and only emits its output into
+     * {@link #code()}.
+     *
+     * @param jt      the tokenizer
+     * @param options the compiler options
+     */
+    CompilationEngine(JackTokenizer jt, Options options) {
+        this(jt, null, options);
+    }
+
+    /**
+     * Creates a new compilation engine that gets its input from the given tokenizer and emits its output to the given
+     * writer.
+     *
+     * @param jt  the tokenizer
+     * @param vmw the writer, or <code>null</code>
+     */
+    CompilationEngine(JackTokenizer jt, VMWriter vmw) {
+        this(jt, vmw, new Options());
+    }
+
+    /**
+     * Creates a new compilation engine that gets its input from the given tokenizer and emits its output to the given
+     * writer.
+     *
+     * @param jt      the tokenizer
+     * @param vmw     the writer, or <code>null</code>
+     * @param options the compiler options
+     */
+    CompilationEngine(JackTokenizer jt, VMWriter vmw, Options options) {
+        this.jt = jt;
+        this.vmw = vmw;
+        optimize = options.optimize;
+        poolStrings = options.optimize && !options.mutableStrings;
         cst = new SymbolTable();
-        sst = new SymbolTable();
+        sst = new SymbolTable(cst);
         jt.advance();
     }
 
@@ -38,37 +124,106 @@ class CompilationEngine {
      * Compiles a complete class.
      */
     void compileClass() {
-        process("class");
-        className = jt.identifier();
-        jt.advance();
-        process("{");
-        while (jt.tokenType() == TokenType.KEYWORD &&
-                (jt.keyWord() == Keyword.STATIC || jt.keyWord() == Keyword.FIELD)) {
+        jt.expect(Keyword.CLASS);
+        className = jt.expectIdentifier();
+        jt.expect('{');
+        while (jt.isKeyword(JackTokenizer.CLASS_VAR_DEC)) {
             compileClassVarDec();
         }
-        while (jt.tokenType() == TokenType.KEYWORD &&
-                (jt.keyWord() == Keyword.CONSTRUCTOR || jt.keyWord() == Keyword.FUNCTION || jt.keyWord() == Keyword.METHOD)) {
+        while (jt.isKeyword(JackTokenizer.SUBROUTINE_DEC)) {
             compileSubroutine();
+            flush();
         }
-        process("}");
-        vmw.close();
+        jt.expect('}');
+        if (!strings.isEmpty()) {
+            compileStrings();
+            flush();
+        }
+        if (vmw != null) {
+            code.writeTo(vmw);
+            vmw.close();
+        }
+    }
+
+    /**
+     * Hands the code of each function to the given sink as soon as it is compiled, each function in a {@link VMCode}
+     * of its own, rather than keeping it in {@link #code()}.
+     *
+     * @param sink the sink, which is called on the thread of the engine
+     */
+    void stream(Consumer<VMCode> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Resolves and checks the calls of the class with the signatures of the given index, rather than by the case of
+     * their names: a qualified call whose receiver is not a variable calls a function of the class of that name if the
+     * name is capitalized or a class of the index, an unqualified call of a function or constructor of the class does
+     * not pass <code>this</code>, and a call that does not match the declaration of its subroutine in the index is an
+     * error. A call whose receiver is neither calls the current class, as without an index, and is not checked.
+     *
+     * @param index the signatures of the classes of the build, or <code>null</code>
+     */
+    void resolve(SignatureIndex index) {
+        this.index = index;
+    }
+
+    private void flush() {
+        if (sink == null) return;
+        sink.accept(code);
+        code = new VMCode();
+    }
+
+    /**
+     * Returns the code compiled so far.
+     *
+     * @return the code
+     */
+    VMCode code() {
+        return code;
+    }
+
+    /**
+     * Returns the number of instructions that the optimizations of the engine saved, that is, the difference between
+     * the size of the unoptimized code and {@link #code()}.
+     *
+     * @return the number of instructions saved
+     */
+    int instructionsSaved() {
+        return instructionsSaved;
+    }
+
+    /**
+     * Returns the number of <code>call</code> instructions that the optimizations of the engine saved.
+     *
+     * @return the number of calls saved
+     */
+    int callsSaved() {
+        return callsSaved;
+    }
+
+    /**
+     * Returns the number of calls of <code>Math.multiply</code> and <code>Math.divide</code> that the engine replaced
+     * by cheaper instructions. These are part of the {@link #callsSaved}.
+     *
+     * @return the number of calls reduced
+     */
+    int callsReduced() {
+        return callsReduced;
     }
 
     /**
      * Compiles a static variable declaration, or a field declaration.
      */
     private void compileClassVarDec() {
-        String kind = process("static|field");
-        String type = jt.identifier();
-        jt.advance();
-        cst.define(jt.identifier(), type, Kind.valueOf(kind.toUpperCase()));
-        jt.advance();
-        while (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == ',') {
-            process(",");
-            cst.define(jt.identifier(), type, Kind.valueOf(kind.toUpperCase()));
-            jt.advance();
+        Kind kind = jt.expect(JackTokenizer.CLASS_VAR_DEC) == Keyword.STATIC ? Kind.STATIC : Kind.FIELD;
+        String type = jt.expectType(JackTokenizer.TYPE);
+        cst.define(jt.expectIdentifier(), type, kind);
+        while (jt.isSymbol(',')) {
+            jt.expect(',');
+            cst.define(jt.expectIdentifier(), type, kind);
         }
-        process(";");
+        jt.expect(';');
     }
 
     /**
@@ -77,16 +232,15 @@ class CompilationEngine {
     private void compileSubroutine() {
         sst.reset();
         ifIndex = whileIndex = 0;
-        subroutineType = process("constructor|function|method");
-        if (Pattern.matches("method", subroutineType)) {
+        subroutineType = jt.expect(JackTokenizer.SUBROUTINE_DEC);
+        if (subroutineType == Keyword.METHOD) {
             sst.define("this", className, Kind.ARG);
         }
-        process("void|int|char|boolean|[a-zA-Z_][a-zA-Z0-9_]*");
-        subroutineName = jt.identifier();
-        jt.advance();
-        process("(");
+        jt.expectType(JackTokenizer.RETURN_TYPE);
+        subroutineName = jt.expectIdentifier();
+        jt.expect('(');
         compileParameterList();
-        process(")");
+        jt.expect(')');
         compileSubroutineBody();
     }
 
@@ -94,18 +248,14 @@ class CompilationEngine {
      * Compiles a (possibly empty) parameter list. Does not handle the enclosing parentheses tokens ( and ).
      */
     private void compileParameterList() {
-        if ((jt.tokenType() == TokenType.KEYWORD && (jt.keyWord() == Keyword.INT || jt.keyWord() == Keyword.BOOLEAN)) || (jt.tokenType() == TokenType.IDENTIFIER)) {
-            String type = jt.identifier();
-            jt.advance();
-            sst.define(jt.identifier(), type, Kind.ARG);
-            jt.advance();
-        }
-        while (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == ',') {
-            process(",");
-            String type = jt.identifier();
-            jt.advance();
-            sst.define(jt.identifier(), type, Kind.ARG);
-            jt.advance();
+        if (jt.isKeyword(JackTokenizer.TYPE) || jt.tokenType() == TokenType.IDENTIFIER) {
+            String type = jt.expectType(JackTokenizer.TYPE);
+            sst.define(jt.expectIdentifier(), type, Kind.ARG);
+            while (jt.isSymbol(',')) {
+                jt.expect(',');
+                type = jt.expectType(JackTokenizer.TYPE);
+                sst.define(jt.expectIdentifier(), type, Kind.ARG);
+            }
         }
     }
 
@@ -113,48 +263,92 @@ class CompilationEngine {
      * Compiles a subroutine's body.
      */
     private void compileSubroutineBody() {
-        process("{");
-        while (jt.tokenType() == TokenType.KEYWORD && jt.keyWord() == Keyword.VAR) {
+        jt.expect('{');
+        while (jt.isKeyword(1 << Keyword.VAR.ordinal())) {
             compileVarDec();
         }
-        vmw.writeFunction(className + "." + subroutineName, sst.varCount(Kind.VAR));
+        code.function(className + "." + subroutineName, sst.varCount(Kind.VAR));
+        int start = code.size();
+        usesStrings = false;
         switch (subroutineType) {
-            case "constructor":
-                vmw.writePush(Segment.CONSTANT, cst.varCount(Kind.FIELD));
-                vmw.writeCall("Memory.alloc", 1);
-                vmw.writePop(Segment.POINTER, 0);
+            case CONSTRUCTOR:
+                code.push(Segment.CONSTANT, cst.varCount(Kind.FIELD));
+                code.call("Memory.alloc", 1);
+                code.pop(Segment.POINTER, 0);
                 break;
-            case "method":
-                vmw.writePush(Segment.ARGUMENT, 0);
-                vmw.writePop(Segment.POINTER, 0);
+            case METHOD:
+                code.push(Segment.ARGUMENT, 0);
+                code.pop(Segment.POINTER, 0);
                 break;
         }
         compileStatements();
-        process("}");
+        jt.expect('}');
+        if (usesStrings) {
+            // insert the call of the string initializer before the body
+            VMCode body = new VMCode();
+            for (int i = start; i < code.size(); i++) body.copy(code, i);
+            code.truncate(start);
+            code.push(Segment.STATIC, cst.varCount(Kind.STATIC));
+            code.ifGoTo("STRINGS_READY");
+            code.call(className + ".$strings", 0);
+            code.pop(Segment.TEMP, 0);
+            code.label("STRINGS_READY");
+            for (int i = 0; i < body.size(); i++) code.copy(body, i);
+            instructionsSaved -= 5;
+            callsSaved--;
+        }
+    }
+
+    /**
+     * Compiles the function <i>Xxx</i><code>.$strings</code>, which builds the pooled string constants of the class.
+     */
+    private void compileStrings() {
+        int start = code.size();
+        code.function(className + ".$strings", 0);
+        for (Map.Entry<String, Integer> e : strings.entrySet()) {
+            compileString(code, e.getKey());
+            code.pop(Segment.STATIC, cst.varCount(Kind.STATIC) + e.getValue());
+            callsSaved -= e.getKey().length() + 1;
+        }
+        code.push(Segment.CONSTANT, 0);
+        code.ret();
+        instructionsSaved -= code.size() - start;
+    }
+
+    /**
+     * Builds the given string constant at run time.
+     *
+     * @param code the code to emit to
+     * @param s    the string constant
+     */
+    static void compileString(VMCode code, String s) {
+        code.push(Segment.CONSTANT, s.length());
+        code.call("String.new", 1);
+        for (int i = 0; i < s.length(); i++) {
+            code.push(Segment.CONSTANT, s.charAt(i));
+            code.call("String.appendChar", 2);
+        }
     }
 
     /**
      * Compiles a <code>var</code> declaration.
      */
     private void compileVarDec() {
-        process("var");
-        String type = jt.identifier();
-        jt.advance();
-        sst.define(jt.identifier(), type, Kind.VAR);
-        jt.advance();
-        while (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == ',') {
-            process(",");
-            sst.define(jt.identifier(), type, Kind.VAR);
-            jt.advance();
+        jt.expect(Keyword.VAR);
+        String type = jt.expectType(JackTokenizer.TYPE);
+        sst.define(jt.expectIdentifier(), type, Kind.VAR);
+        while (jt.isSymbol(',')) {
+            jt.expect(',');
+            sst.define(jt.expectIdentifier(), type, Kind.VAR);
         }
-        process(";");
+        jt.expect(';');
     }
 
     /**
      * Compiles a sequence of statements. Does not handle the enclosing curly bracket tokens { and }.
      */
     private void compileStatements() {
-        while (jt.tokenType() == TokenType.KEYWORD && (jt.keyWord() == Keyword.LET || jt.keyWord() == Keyword.IF || jt.keyWord() == Keyword.WHILE || jt.keyWord() == Keyword.DO || jt.keyWord() == Keyword.RETURN)) {
+        while (jt.isKeyword(JackTokenizer.STATEMENT)) {
             switch (jt.keyWord()) {
                 case LET: compileLet(); break;
                 case IF: compileIf(); break;
@@ -169,50 +363,29 @@ class CompilationEngine {
      * Compiles a <code>let</code> statement.
      */
     private void compileLet() {
-        process("let");
-        String var = jt.identifier();
-        jt.advance();
-        if (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == '[') {
-            process("[");
+        jt.expect(Keyword.LET);
+        String var = jt.expectIdentifier();
+        if (jt.isSymbol('[')) {
+            jt.expect('[');
             compileExpression();
-            process("]");
-            switch (sst.kindOf(var)) {
-                case ARG:
-                    vmw.writePush(Segment.ARGUMENT, sst.indexOf(var));
-                    break;
-                case VAR:
-                    vmw.writePush(Segment.LOCAL, sst.indexOf(var));
-                    break;
-            }
-            vmw.writeArithmetic(Command.ADD);
-            process("=");
+            jt.expect(']');
+            pushVariable(sst.lookup(var));
+            code.arithmetic(Command.ADD);
+            jt.expect('=');
             compileExpression();
-            vmw.writePop(Segment.TEMP, 0);
-            vmw.writePop(Segment.POINTER,1);
-            vmw.writePush(Segment.TEMP, 0);
-            vmw.writePop(Segment.THAT, 0);
+            code.pop(Segment.TEMP, 0);
+            code.pop(Segment.POINTER,1);
+            code.push(Segment.TEMP, 0);
+            code.pop(Segment.THAT, 0);
         } else {
-            process("=");
+            jt.expect('=');
             compileExpression();
-            switch (sst.kindOf(var)) {
-                case VAR:
-                    vmw.writePop(Segment.LOCAL, sst.indexOf(var));
-                    break;
-                case ARG:
-                    vmw.writePop(Segment.ARGUMENT, sst.indexOf(var));
-                case NONE:
-                    switch (cst.kindOf(var)) {
-                        case FIELD:
-                            vmw.writePop(Segment.THIS, cst.indexOf(var));
-                            break;
-                        case STATIC:
-                            vmw.writePop(Segment.STATIC, cst.indexOf(var));
-                            break;
-                    }
-                    break;
+            int variable = sst.lookup(var);
+            if (variable >= 0) {
+                code.pop(SymbolTable.segment(variable), SymbolTable.index(variable));
             }
         }
-        process(";");
+        jt.expect(';');
     }
 
     /**
@@ -220,26 +393,26 @@ class CompilationEngine {
      */
     private void compileIf() {
         int i = ifIndex++;
-        process("if");
-        process("(");
+        jt.expect(Keyword.IF);
+        jt.expect('(');
         compileExpression();
-        vmw.writeIf("IF_TRUE" + i);
-        vmw.writeGoto("IF_FALSE" + i);
-        vmw.writeLabel("IF_TRUE" + i);
-        process(")");
-        process("{");
+        code.ifGoTo("IF_TRUE" + i);
+        code.goTo("IF_FALSE" + i);
+        code.label("IF_TRUE" + i);
+        jt.expect(')');
+        jt.expect('{');
         compileStatements();
-        process("}");
-        if (jt.tokenType() == TokenType.KEYWORD && jt.keyWord() == Keyword.ELSE) {
-            vmw.writeGoto("IF_END" + i);
-            vmw.writeLabel("IF_FALSE" + i);
-            process("else");
-            process("{");
+        jt.expect('}');
+        if (jt.isKeyword(1 << Keyword.ELSE.ordinal())) {
+            code.goTo("IF_END" + i);
+            code.label("IF_FALSE" + i);
+            jt.expect(Keyword.ELSE);
+            jt.expect('{');
             compileStatements();
-            process("}");
-            vmw.writeLabel("IF_END" + i);
+            jt.expect('}');
+            code.label("IF_END" + i);
         } else {
-            vmw.writeLabel("IF_FALSE" + i);
+            code.label("IF_FALSE" + i);
         }
     }
 
@@ -248,248 +421,424 @@ class CompilationEngine {
      */
     private void compileWhile() {
         int i = whileIndex;
-        vmw.writeLabel("WHILE_EXP" + i);
-        process("while");
-        process("(");
+        code.label("WHILE_EXP" + i);
+        jt.expect(Keyword.WHILE);
+        jt.expect('(');
         compileExpression();
-        process(")");
-        vmw.writeArithmetic(Command.NOT);
-        vmw.writeIf("WHILE_END" + i);
-        process("{");
+        jt.expect(')');
+        code.arithmetic(Command.NOT);
+        code.ifGoTo("WHILE_END" + i);
+        jt.expect('{');
         whileIndex++;
         compileStatements();
-        vmw.writeGoto("WHILE_EXP" + i);
-        process("}");
-        vmw.writeLabel("WHILE_END" + i);
+        code.goTo("WHILE_EXP" + i);
+        jt.expect('}');
+        code.label("WHILE_END" + i);
     }
 
     /**
      * Compiles a <code>do</code> statement.
      */
     private void compileDo() {
-        process("do");
+        jt.expect(Keyword.DO);
         compileExpression();
-        process(";");
-        vmw.writePop(Segment.TEMP, 0);
+        jt.expect(';');
+        code.pop(Segment.TEMP, 0);
     }
 
     /**
      * Compiles a <code>return</code> statement.
      */
     private void compileReturn() {
-        process("return");
-        if (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == ';') {
-            vmw.writePush(Segment.CONSTANT, 0);
+        jt.expect(Keyword.RETURN);
+        if (jt.isSymbol(';')) {
+            code.push(Segment.CONSTANT, 0);
         } else {
             compileExpression();
         }
-        process(";");
-        vmw.writeReturn();
+        jt.expect(';');
+        code.ret();
     }
 
     /**
-     * Compiles an expression.
+     * Compiles an expression. Jack operators have no precedence and are applied from left to right, so the code of an
+     * expression is that of its first term, followed by the code of each further term and its operator. Terms that
+     * contain expressions of their own, i.e. parenthesized expressions, array entries and the arguments of subroutine
+     * calls, are compiled with an explicit stack of {@link Nested} expressions rather than by recursion, so that the
+     * depth of nesting is only limited by the heap.
      */
     private void compileExpression() {
-        compileTerm();
-        while (jt.tokenType() == TokenType.SYMBOL && (
-                jt.symbol() == '+' ||
-                        jt.symbol() == '-' ||
-                        jt.symbol() == '*' ||
-                        jt.symbol() == '/' ||
-                        jt.symbol() == '&' ||
-                        jt.symbol() == '|' ||
-                        jt.symbol() == '<' ||
-                        jt.symbol() == '>' ||
-                        jt.symbol() == '='
-        )) {
-            char op = jt.symbol();
-            jt.advance();
-            compileTerm();
-            switch (op) {
-                case '+':
-                    vmw.writeArithmetic(Command.ADD);
-                    break;
-                case '-':
-                    vmw.writeArithmetic(Command.SUB);
-                    break;
-                case '*':
-                    vmw.writeCall("Math.multiply", 2);
-                    break;
-                case '/':
-                    vmw.writeCall("Math.divide", 2);
-                    break;
-                case '<':
-                    vmw.writeArithmetic(Command.LT);
-                    break;
-                case '>':
-                    vmw.writeArithmetic(Command.GT);
-                    break;
-                case '=':
-                    vmw.writeArithmetic(Command.EQ);
-                    break;
-                case '&':
-                    vmw.writeArithmetic(Command.AND);
+        Nested e = new Nested(Nested.EXPRESSION, null, 0, code.size());
+        while (true) {
+            e.term = code.size();
+            while (jt.isSymbol('-') || jt.isSymbol('~')) {
+                if (e.unary == null) e.unary = new StringBuilder();
+                e.unary.append(jt.symbol());
+                jt.advance();
+            }
+            Nested nested = compileTerm();
+            if (nested != null) {
+                enclosing.push(e);
+                e = nested;
+                continue;
+            }
+            // the term is complete, and with it every nested expression that ends after it
+            while (true) {
+                completeTerm(e);
+                if (jt.isOperator()) {
+                    e.op = jt.symbol();
+                    jt.advance();
+                    e.right = code.size();
                     break;
-                case '|':
-                    vmw.writeArithmetic(Command.OR);
+                }
+                if (e.kind == Nested.EXPRESSION) return;
+                if (e.kind == Nested.ARGUMENTS && jt.isSymbol(',')) {
+                    jt.expect(',');
+                    e.count++;
+                    e.start = code.size();
                     break;
+                }
+                close(e);
+                e = enclosing.pop();
             }
         }
     }
 
     /**
-     * Compiles a (possibly empty) comma-separated list of expressions.
+     * An expression that is being compiled: the whole expression, or one nested in a term.
+     */
+    private static class Nested {
+
+        static final int EXPRESSION = 0, PARENTHESES = 1, ARRAY = 2, ARGUMENTS = 3;
+
+        final int kind;
+        final String name;          // the array, or the subroutine called
+        int count;                  // the number of arguments before this one
+        int start;                  // index of the first instruction of the expression
+        int term;                   // index of the first instruction of the current term
+        int right;                  // index of the first instruction of the right operand of op
+        char op;                    // the operator before the current term, or 0 for the first term
+        StringBuilder unary;        // the unary operators of the current term, or null
+        boolean checked;            // false if the class of the subroutine called is a guess
+        int line, column;           // the position of the "(" of the call
+
+        Nested(int kind, String name, int count, int start) {
+            this.kind = kind;
+            this.name = name;
+            this.count = count;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Emits the unary operators of a term that has just been compiled, from the innermost out, and the operator
+     * before the term.
      *
-     * @return  the number of expressions in the list
+     * @param e the expression of the term
      */
-    private int compileExpressionList() {
-        int numberOfExpressions = 0;
-        while (jt.symbol() != ')') {
-            compileExpression();
-            numberOfExpressions++;
-            while (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == ',') {
-                process(",");
-                compileExpression();
-                numberOfExpressions++;
+    private void completeTerm(Nested e) {
+        for (int i = e.unary != null ? e.unary.length() - 1 : -1; i >= 0; i--) {
+            char symbol = e.unary.charAt(i);
+            if (optimize && code.isConstant(e.term, code.size())) {
+                int x = code.constant(e.term, code.size()), size = code.size();
+                code.truncate(e.term);
+                code.pushConstant((short) (symbol == '-' ? -x : ~x));
+                instructionsSaved += size + 1 - code.size();
+            } else {
+                code.arithmetic(symbol == '-' ? Command.NEG : Command.NOT);
             }
         }
-        return numberOfExpressions;
+        if (e.unary != null) e.unary.setLength(0);
+        if (e.op == 0) return;
+        char op = e.op;
+        int start = e.start, right = e.right;
+        e.op = 0;
+        if (optimize && code.isConstant(start, right) && code.isConstant(right, code.size())) {
+            int x = code.constant(start, right), y = code.constant(right, code.size());
+            Integer value = fold(op, x, y);
+            if (value != null) {
+                int size = code.size();
+                code.truncate(start);
+                code.pushConstant(value);
+                instructionsSaved += size + 1 - code.size();
+                if (op == '*' || op == '/') callsSaved++;
+                return;
+            }
+        }
+        int end = code.size();
+        if (optimize && StrengthReducer.reduce(code, start, right, op)) {
+            instructionsSaved += end + 1 - code.size();
+            callsSaved++;
+            callsReduced++;
+            return;
+        }
+        compileOperator(code, op);
+    }
+
+    /**
+     * Ends a nested expression, and emits the rest of the term that contains it.
+     *
+     * @param e the nested expression
+     */
+    private void close(Nested e) {
+        switch (e.kind) {
+            case Nested.PARENTHESES:
+                jt.expect(')');
+                break;
+            case Nested.ARRAY:
+                jt.expect(']');
+                pushVariable(sst.lookup(e.name));
+                code.arithmetic(Command.ADD);
+                code.pop(Segment.POINTER, 1);
+                code.push(Segment.THAT, 0);
+                break;
+            case Nested.ARGUMENTS:
+                call(e.name, e.count + 1, e.checked, e.line, e.column);
+                break;
+        }
     }
 
     /**
-     * Compiles a <i>term</i>. If the current token is an <i>identifier</i>, the routine must distinguish between a
-     * <i>variable</i>, an <i>array entry</i>, or a <i>subroutine call</i>. A single look-ahead token, which may be one
-     * of "[", "(", or ".", suffices to distinguish between the possibilities. Any other token is not part of this term
-     * and should not be advanced over.
+     * Emits the given binary operator.
+     *
+     * @param code the code to emit to
+     * @param op   the operator
      */
-    private void compileTerm() {
+    static void compileOperator(VMCode code, char op) {
+        switch (op) {
+            case '+':
+                code.arithmetic(Command.ADD);
+                break;
+            case '-':
+                code.arithmetic(Command.SUB);
+                break;
+            case '*':
+                code.call("Math.multiply", 2);
+                break;
+            case '/':
+                code.call("Math.divide", 2);
+                break;
+            case '<':
+                code.arithmetic(Command.LT);
+                break;
+            case '>':
+                code.arithmetic(Command.GT);
+                break;
+            case '=':
+                code.arithmetic(Command.EQ);
+                break;
+            case '&':
+                code.arithmetic(Command.AND);
+                break;
+            case '|':
+                code.arithmetic(Command.OR);
+                break;
+        }
+    }
+
+    /**
+     * Compiles a <i>term</i>, after its unary operators. If the current token is an <i>identifier</i>, the routine must
+     * distinguish between a <i>variable</i>, an <i>array entry</i>, or a <i>subroutine call</i>. A single look-ahead
+     * token, which may be one of "[", "(", or ".", suffices to distinguish between the possibilities. Any other token
+     * is not part of this term and should not be advanced over. A term that contains an expression is compiled up to
+     * that expression, which the caller compiles and then {@link #close closes}.
+     *
+     * @return the nested expression that the term continues with, or <code>null</code> if the term is complete
+     */
+    private Nested compileTerm() {
+        if (jt.tokenType() == null) throw jt.error("a term");
         switch (jt.tokenType()) {
             case INT_CONST:
-                vmw.writePush(Segment.CONSTANT, jt.intVal());
+                code.push(Segment.CONSTANT, jt.intVal());
                 jt.advance();
-                break;
+                return null;
             case STRING_CONST:
-                vmw.writePush(Segment.CONSTANT, jt.stringVal().length());
-                vmw.writeCall("String.new", 1);
-                for (int i = 0; i < jt.stringVal().length(); i++) {
-                    vmw.writePush(Segment.CONSTANT, jt.stringVal().charAt(i));
-                    vmw.writeCall("String.appendChar", 2);
+                String s = jt.stringVal();
+                if (poolStrings) {
+                    Integer index = strings.get(s);
+                    if (index == null) {
+                        index = strings.size();
+                        strings.put(s, index);
+                    }
+                    code.push(Segment.STATIC, cst.varCount(Kind.STATIC) + index);
+                    usesStrings = true;
+                    instructionsSaved += 2 * s.length() + 1;
+                    callsSaved += s.length() + 1;
+                } else {
+                    compileString(code, s);
                 }
                 jt.advance();
-                break;
+                return null;
             case KEYWORD:
+                if (!jt.isKeyword(JackTokenizer.KEYWORD_CONSTANT)) throw jt.error("a term");
                 switch (jt.keyWord()) {
                     case TRUE:
-                        vmw.writePush(Segment.CONSTANT, 0);
-                        vmw.writeArithmetic(Command.NOT);
+                        code.push(Segment.CONSTANT, 0);
+                        code.arithmetic(Command.NOT);
                         break;
                     case FALSE:
                     case NULL:
-                        vmw.writePush(Segment.CONSTANT, 0);
+                        code.push(Segment.CONSTANT, 0);
                         break;
                     case THIS:
-                        vmw.writePush(Segment.POINTER, 0);
+                        code.push(Segment.POINTER, 0);
                         break;
                 }
                 jt.advance();
-                break;
+                return null;
             case IDENTIFIER:
                 String name = jt.identifier();
                 jt.advance();
-                if (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == '[') {
-                    process("[");
-                    compileExpression();
-                    process("]");
-                    vmw.writePush(Segment.LOCAL, sst.indexOf(name));
-                    vmw.writeArithmetic(Command.ADD);
-                    vmw.writePop(Segment.POINTER, 1);
-                    vmw.writePush(Segment.THAT, 0);
-                } else if (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == '.') {
+                if (jt.isSymbol('[')) {
+                    jt.expect('[');
+                    return new Nested(Nested.ARRAY, name, 0, code.size());
+                } else if (jt.isSymbol('.')) {
                     String type;
                     int nVars = 0;
-                    if (sst.kindOf(name) != Kind.NONE) {
-                        type = sst.typeOf(name);
-                        vmw.writePush(Segment.LOCAL, sst.indexOf(name));
-                        nVars++;
-                    } else if (cst.kindOf(name) != Kind.NONE) {
-                        type = cst.typeOf(name);
-                        vmw.writePush(Segment.THIS, cst.indexOf(name));
+                    boolean checked = true;
+                    int variable = sst.lookup(name);
+                    if (variable >= 0) {
+                        type = sst.lookupType(name);
+                        pushVariable(variable);
                         nVars++;
-                    } else if (Character.isUpperCase(name.charAt(0))) {
+                    } else if (Character.isUpperCase(name.charAt(0)) || index != null && index.get(name) != null) {
                         type = name;
                     } else {
                         type = className;
+                        checked = false;
                     }
-                    process(".");
-                    name = type + "." + jt.identifier();
-                    jt.advance();
-                    process("(");
-                    nVars = nVars + compileExpressionList();
-                    process(")");
-                    vmw.writeCall(name, nVars);
-                } else if (jt.tokenType() == TokenType.SYMBOL && jt.symbol() == '(') {
-                    vmw.writePush(Segment.POINTER, 0);
-                    process("(");
-                    int nVars = compileExpressionList();
-                    process(")");
-                    vmw.writeCall(className + "." + name, 1 + nVars);
-                } else {
-                    switch (sst.kindOf(name)) {
-                        case ARG:
-                            vmw.writePush(Segment.ARGUMENT, sst.indexOf(name));
-                            break;
-                        case VAR:
-                            vmw.writePush(Segment.LOCAL, sst.indexOf(name));
-                            break;
-                        case NONE:
-                            switch (cst.kindOf(name)) {
-                                case FIELD:
-                                    vmw.writePush(Segment.THIS, cst.indexOf(name));
-                                    break;
-                                case STATIC:
-                                    vmw.writePush(Segment.STATIC, cst.indexOf(name));
-                                    break;
-                            }
-                            break;
+                    jt.expect('.');
+                    String subroutine = jt.expectIdentifier();
+                    if (checked) check(type, subroutine, nVars > 0);
+                    name = type + "." + subroutine;
+                    return compileArguments(name, nVars, checked);
+                } else if (jt.isSymbol('(')) {
+                    int nVars = 0;
+                    if (!isFunction(name)) {
+                        code.push(Segment.POINTER, 0);
+                        nVars++;
                     }
+                    check(className, name, nVars > 0);
+                    return compileArguments(className + "." + name, nVars, true);
+                } else {
+                    pushVariable(sst.lookup(name));
+                    return null;
                 }
-                break;
             case SYMBOL:
-                switch (jt.symbol()) {
-                    case '(':
-                        process("(");
-                        compileExpression();
-                        process(")");
-                        break;
-                    case '-':
-                    case '~':
-                        char symbol = jt.symbol();
-                        jt.advance();
-                        compileTerm();
-                        vmw.writeArithmetic(symbol == '-' ? Command.NEG : Command.NOT);
-                        break;
-                }
-                break;
+                if (!jt.isSymbol('(')) throw jt.error("a term");
+                jt.expect('(');
+                return new Nested(Nested.PARENTHESES, null, 0, code.size());
         }
+        return null;
     }
 
     /**
-     * A helper routine that handles the current token, and advances to get the next token.
+     * Compiles the call of a subroutine from its "(": at once if it has no arguments, or else by returning the
+     * nested expression of its first argument.
      *
-     * @param str
-     */
-    private String process(String str) {
-        String token = jt.identifier();
-        switch (str) {
-            case "{":
-            case "(":
-            case ")":
-            case "[":
-                str = "\\".concat(str);
+     * @param  name    the full name of the subroutine
+     * @param  nVars   the number of arguments pushed already
+     * @param  checked false if the class of the call is a guess, which the index does not check
+     * @return         the nested expression of the first argument, or <code>null</code> if the call is complete
+     */
+    private Nested compileArguments(String name, int nVars, boolean checked) {
+        int line = jt.line(), column = jt.column();
+        jt.expect('(');
+        if (!jt.isSymbol(')')) {
+            Nested e = new Nested(Nested.ARGUMENTS, name, nVars, code.size());
+            e.checked = checked;
+            e.line = line;
+            e.column = column;
+            return e;
+        }
+        call(name, nVars, checked, line, column);
+        return null;
+    }
+
+    /**
+     * Emits the call of a subroutine at its ")", and checks its number of arguments with the index. A missing ")" is
+     * reported before a wrong number of arguments, as the number is only known once the ")" is found, but the error
+     * gives the position of the "(", as {@link #check} does.
+     *
+     * @param name    the full name of the subroutine
+     * @param nArgs   the number of arguments, including the object of a method
+     * @param checked false if the class of the call is a guess, which the index does not check
+     * @param line    the line of the "("
+     * @param column  the column of the "("
+     */
+    private void call(String name, int nArgs, boolean checked, int line, int column) {
+        jt.expect(')');
+        String problem = index != null && checked ? index.checkArguments(name, nArgs) : null;
+        if (problem != null) throw new IllegalStateException(problem + " at line " + line + ", column " + column);
+        code.call(name, nArgs);
+    }
+
+    /**
+     * Checks a call of the given subroutine with the index, at the "(" after its name.
+     *
+     * @param type   the class of the subroutine
+     * @param name   the name of the subroutine
+     * @param method true if the call passes an object
+     */
+    private void check(String type, String name, boolean method) {
+        String problem = index != null ? index.check(type, name, method) : null;
+        if (problem != null) throw error(problem);
+    }
+
+    /**
+     * Returns whether the given subroutine of the class is a function or a constructor according to the index.
+     *
+     * @param  name the name of the subroutine
+     * @return      true if the subroutine is a function or a constructor, false if it is a method or not known
+     */
+    private boolean isFunction(String name) {
+        SignatureIndex.Signature signature = index != null ? index.get(className) : null;
+        SignatureIndex.Subroutine subroutine = signature != null ? signature.subroutines.get(name) : null;
+        return subroutine != null && subroutine.kind != Keyword.METHOD;
+    }
+
+    private IllegalStateException error(String problem) {
+        return new IllegalStateException(problem + " at line " + jt.line() + ", column " + jt.column());
+    }
+
+    /**
+     * Pushes a variable found by {@link SymbolTable#lookup}. Nothing is pushed for an undefined variable.
+     *
+     * @param variable the segment and index of the variable, or -1
+     */
+    private void pushVariable(int variable) {
+        if (variable >= 0) {
+            code.push(SymbolTable.segment(variable), SymbolTable.index(variable));
+        }
+    }
+
+    /**
+     * Computes a binary operator on constants as the Hack platform and the Jack OS would at run time. Returns
+     * <code>null</code> for division by zero, which is an error at run time, for divisions involving -32768, which
+     * <code>Math.divide</code> cannot negate, and for comparisons whose difference overflows, which VM translators may
+     * compute by subtraction.
+     *
+     * @param  op the operator
+     * @param  x  the left operand
+     * @param  y  the right operand
+     * @return    the 16-bit result, or <code>null</code> if the operation must be left to run time
+     */
+    static Integer fold(char op, int x, int y) {
+        switch (op) {
+            case '+': return (int) (short) (x + y);
+            case '-': return (int) (short) (x - y);
+            case '*': return (int) (short) (x * y);
+            case '/':
+                if (y == 0 || x == Short.MIN_VALUE || y == Short.MIN_VALUE) return null;
+                return (int) (short) (x / y);
+            case '&': return x & y;
+            case '|': return x | y;
+            case '=': return x == y ? -1 : 0;
+            case '<':
+            case '>':
+                if (x - y != (short) (x - y)) return null;
+                return (op == '<' ? x < y : x > y) ? -1 : 0;
         }
-        if (Pattern.matches(str, token));
-        if (jt.hasMoreTokens()) jt.advance();
-        return token;
+        return null;
     }
-}
\ No newline at end of file
+}
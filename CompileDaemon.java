@@ -0,0 +1,183 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This module keeps a warmed-up compiler resident and serves compile requests over a Unix-domain socket, so that
+ * small builds do not pay for JVM startup and a cold JIT every time. {@link JackClient} sends the requests.
+ * <p>
+ * <b>Usage:</b> <code>java CompileDaemon</code>. The socket is created at the path given by the
+ * <code>JACKC_SOCKET</code> environment variable, or at <code>jackc-</code><i>user</i><code>.sock</code> in the
+ * temporary folder.
+ * <p>
+ * The protocol is line based and UTF-8 encoded. A request consists of the command-line arguments of
+ * {@link JackCompiler}, one per line and with absolute file names, followed by an empty line. The single argument
+ * <code>--shutdown</code> stops the daemon. The reply has one line per compiled file, with tab-separated fields
+ * <pre>
+ * <i>status</i>  <i>microseconds</i>  <i>source file</i>  [<i>error message</i>]
+ * </pre>
+ * where the status is <code>ok</code>, <code>up-to-date</code> or <code>error</code>; with <code>-O</code>, an
+ * <code>ok</code> line ends with the instruction and call counts before and after optimization, and the number of calls
+ * replaced by strength reduction, instead of an error message, separated by spaces. With <code>--whole-program</code>,
+ * an <code>ok</code> line ends with a further field that holds the number of removed instructions and the names of the
+ * removed functions of the class, separated by spaces, and with <code>--inline</code>, with a field that holds the
+ * number of inlined call sites followed by each call site (<i>caller</i><code>-&gt;</code><i>callee</i>) and its number
+ * of calls, separated by spaces. With <code>--format asm</code>, it ends with a field that holds the number of Hack
+ * instructions of the class, or -1 if it has none. With <code>--stats</code> or <code>--stats-json</code>, it ends with
+ * a field that holds the token, instruction, byte and allocated byte counts of the {@link Metrics} and the nanoseconds
+ * of each phase, separated by spaces. The lines are followed by a final line <code>done</code> <i>exit status</i>.
+ *
+ * @author Maarten Derks
+ */
+class CompileDaemon {
+
+    private static final String WARM_UP_CLASS = String.join("\n",
+            "class WarmUp {",
+            "    field int x, y;",
+            "    static Array cache;",
+            "    constructor WarmUp new(int ax, int ay) { let x = ax; let y = ay; return this; }",
+            "    method int sum(int n) {",
+            "        var int i, s;",
+            "        let i = 0;",
+            "        while (i < n) { if (i > 5) { let s = s + (i * x); } else { let s = s - y; } let i = i + 1; }",
+            "        do Output.printString(\"warm up\");",
+            "        return s;",
+            "    }",
+            "    function void main() { var WarmUp w; let w = WarmUp.new(1, 2); do w.sum(10); return; }",
+            "}");
+
+    private static volatile ServerSocketChannel server;
+
+    public static void main(String[] args) throws Exception {
+        Path socket = socketPath();
+        warmUp();
+        Files.deleteIfExists(socket);
+        ExecutorService connections = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "jackc-connection");
+            t.setDaemon(true);
+            return t;
+        });
+        try (ServerSocketChannel ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server = ssc;
+            ssc.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println("Listening on " + socket);
+            while (ssc.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = ssc.accept();
+                } catch (IOException e) {
+                    break;
+                }
+                connections.submit(() -> serve(channel));
+            }
+        } finally {
+            connections.shutdown();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * Returns the path of the daemon socket.
+     *
+     * @return the socket path
+     */
+    static Path socketPath() {
+        String path = System.getenv("JACKC_SOCKET");
+        if (path != null) return Paths.get(path);
+        return Paths.get(System.getProperty("java.io.tmpdir"), "jackc-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Compiles a small class a number of times, so that the tokenizer, compilation engine and writer are compiled by
+     * the JIT before the first request arrives.
+     */
+    private static void warmUp() throws Exception {
+        File f = File.createTempFile("WarmUp", ".jack");
+        try {
+            Files.write(f.toPath(), WARM_UP_CLASS.getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 2000; i++) {
+                new CompilationEngine(f, OutputStream.nullOutputStream()).compileClass();
+            }
+        } finally {
+            Files.delete(f.toPath());
+        }
+    }
+
+    /**
+     * Reads a single request from the given connection, and writes the reply.
+     *
+     * @param channel the connection
+     */
+    private static void serve(SocketChannel channel) {
+        try (SocketChannel ch = channel;
+             BufferedReader in = new BufferedReader(Channels.newReader(ch, StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(Channels.newWriter(ch, StandardCharsets.UTF_8))) {
+            List<String> args = new ArrayList<>();
+            for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+                args.add(line);
+            }
+            if (args.size() == 1 && args.get(0).equals("--shutdown")) {
+                out.println("done 0");
+                out.flush();
+                server.close();
+                return;
+            }
+
+            int status = 0;
+            try {
+                Options options = Options.parse(args.toArray(new String[0]));
+                for (JackCompiler.Result result : JackCompiler.build(options)) {
+                    String state = result.error != null ? "error" : result.upToDate ? "up-to-date" : "ok";
+                    out.print(state + "\t" + result.nanos / 1000 + "\t" + result.file.getPath());
+                    if (result.error != null) {
+                        out.print("\t" + result.error.replace('\n', ' ').replace('\t', ' '));
+                        status = 1;
+                    } else {
+                        if (result.instructions >= 0) {
+                            out.print("\t" + result.instructions + " " + result.optimizedInstructions + " "
+                                    + result.calls + " " + result.optimizedCalls + " " + result.reducedCalls);
+                        }
+                        if (result.removed != null) {
+                            out.print("\t" + result.removedInstructions);
+                            for (String function : result.removed) out.print(" " + function);
+                        }
+                        if (result.inlined != null) {
+                            out.print("\t" + result.inlined.size());
+                            result.inlined.forEach((call, n) -> out.print(" " + call + " " + n));
+                        }
+                        if (options.format.equals("asm")) {
+                            out.print("\t" + result.hackInstructions);
+                        }
+                        if (options.stats || options.statsJson != null) {
+                            Metrics m = result.metrics;
+                            out.print("\t" + m.tokens + " " + m.instructions + " " + m.bytes + " " + m.allocated);
+                            for (long nanos : m.nanos) out.print(" " + nanos);
+                        }
+                    }
+                    out.println();
+                }
+            } catch (Exception e) {
+                out.println("error\t0\t-\t" + e.toString().replace('\n', ' ').replace('\t', ' '));
+                status = 2;
+            }
+            out.println("done " + status);
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+}
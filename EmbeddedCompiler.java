@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This module is the entry point for compiling Jack code in memory, without touching the file system. The input can
+ * be a {@link CharSequence}, a {@link Reader}, or a UTF-8 encoded {@link ByteBuffer}; the VM code can be written to
+ * an {@link OutputStream}, a {@link WritableByteChannel}, or an {@link Appendable}. Streams and channels are closed
+ * when the class is compiled; readers and appendables are not.
+ *
+ * @author Maarten Derks
+ */
+class EmbeddedCompiler {
+
+    /**
+     * The outcome of compiling one class of a batch.
+     */
+    static class ClassResult {
+        final String name;
+        String vm;
+        String error;
+        long nanos;
+
+        ClassResult(String name) {
+            this.name = name;
+        }
+    }
+
+    private EmbeddedCompiler() {
+    }
+
+    /**
+     * Compiles the given source and returns the VM code.
+     *
+     * @param  source the source of a single class
+     * @return        the VM code
+     */
+    static String compile(CharSequence source) {
+        StringBuilder vm = new StringBuilder(source.length() * 2);
+        compile(new JackTokenizer(source), new VMWriter(vm));
+        return vm.toString();
+    }
+
+    /**
+     * Compiles the given source into {@link VMCode}, for further processing without parsing text.
+     *
+     * @param  source the source of a single class
+     * @return        the code
+     */
+    static VMCode compileToCode(CharSequence source) {
+        CompilationEngine ce = new CompilationEngine(new JackTokenizer(source));
+        ce.compileClass();
+        return ce.code();
+    }
+
+    /**
+     * Compiles the given source into the given stream.
+     *
+     * @param source the source of a single class
+     * @param out    the output stream
+     */
+    static void compile(CharSequence source, OutputStream out) {
+        compile(new JackTokenizer(source), new VMWriter(out));
+    }
+
+    /**
+     * Compiles the source read from the given reader into the given stream.
+     *
+     * @param source the source of a single class
+     * @param out    the output stream
+     */
+    static void compile(Reader source, OutputStream out) throws IOException {
+        compile(new JackTokenizer(source), new VMWriter(out));
+    }
+
+    /**
+     * Compiles the source read from the given reader, and appends the VM code to the given character sequence.
+     *
+     * @param source the source of a single class
+     * @param out    the output character sequence
+     */
+    static void compile(Reader source, Appendable out) throws IOException {
+        compile(new JackTokenizer(source), new VMWriter(out));
+    }
+
+    /**
+     * Compiles the given UTF-8 encoded source into the given channel.
+     *
+     * @param source the source of a single class
+     * @param out    the output channel
+     */
+    static void compile(ByteBuffer source, WritableByteChannel out) {
+        compile(new JackTokenizer(source), new VMWriter(out));
+    }
+
+    /**
+     * Compiles the input of the given tokenizer with the given writer.
+     *
+     * @param jt  the tokenizer
+     * @param vmw the writer
+     */
+    static void compile(JackTokenizer jt, VMWriter vmw) {
+        new CompilationEngine(jt, vmw).compileClass();
+    }
+
+    /**
+     * Compiles a batch of classes. A class that fails to compile does not stop the batch.
+     *
+     * @param  sources the sources, by class name
+     * @return         the results, in the iteration order of the given map
+     */
+    static List<ClassResult> compileAll(Map<String, ? extends CharSequence> sources) {
+        List<ClassResult> results = new ArrayList<>(sources.size());
+        for (Map.Entry<String, ? extends CharSequence> e : sources.entrySet()) {
+            long start = System.nanoTime();
+            ClassResult result = new ClassResult(e.getKey());
+            try {
+                result.vm = compile(e.getValue());
+            } catch (RuntimeException | StackOverflowError ex) {
+                result.error = ex.toString();
+            }
+            result.nanos = System.nanoTime() - start;
+            results.add(result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This module replaces calls of trivial functions by the code of their bodies, across the classes of a build. The
+ * {@link VMCode} of every class is added first, and each function whose body has one of the shapes below becomes an
+ * inline candidate. The code of each class is then rewritten, with every call of a candidate replaced by a short
+ * sequence that has the same effect on the stack and on the fields of the object, but that does not pay for the
+ * <code>call</code> / <code>return</code> protocol:
+ * <table>
+ *     <tr><th>body</th><th>replacement</th></tr>
+ *     <tr><td><code>return</code> <i>constant</i></td><td><i>constant</i></td></tr>
+ *     <tr><td><code>return</code> <i>argument</i> (function with one argument)</td><td></td></tr>
+ *     <tr><td><code>return</code> <i>static</i></td><td><code>push static</code> <i>k</i>, in the same class
+ *     only</td></tr>
+ *     <tr><td><code>let</code> <i>static</i> <code>=</code> <i>argument</i><code>; return;</code></td>
+ *     <td><code>pop static</code> <i>k</i>, in the same class only</td></tr>
+ *     <tr><td><code>return this</code> (method)</td><td></td></tr>
+ *     <tr><td><code>return</code> <i>field</i> (method)</td><td><code>pop pointer 1; push that</code> <i>k</i></td></tr>
+ *     <tr><td><code>let</code> <i>field</i> <code>=</code> <i>argument</i><code>; return;</code> (method)</td>
+ *     <td><code>pop temp 0; pop pointer 1; push temp 0; pop that</code> <i>k</i></td></tr>
+ * </table>
+ * Static variables belong to the class whose file declares them, so functions that use them are only inlined into
+ * their own class. The replacement uses the <code>that</code> segment and <code>temp 0</code>, which the compiler
+ * only uses within a single statement and never across a call. A <code>void</code> function returns 0, which is pushed
+ * unless the call is the call of a <code>do</code> statement, whose result is discarded right away.
+ * <p>
+ * Only replacements of at most {@link Options#inlineLimit} instructions are made, besides the <code>push constant
+ * 0</code> of a <code>void</code> function.
+ *
+ * @author Maarten Derks
+ */
+class Inliner {
+
+    /**
+     * An inline candidate.
+     */
+    private static class Candidate {
+        final VMCode body = new VMCode();
+        final int nArgs;
+        final String className;    // the class that the body must be inlined into, or null for any class
+        final boolean isVoid;
+
+        Candidate(int nArgs, String className, boolean isVoid) {
+            this.nArgs = nArgs;
+            this.className = className;
+            this.isVoid = isVoid;
+        }
+    }
+
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private final int limit;
+
+    /**
+     * Creates a new inliner.
+     *
+     * @param limit the maximum number of instructions that replace a call
+     */
+    Inliner(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Finds the inline candidates among the functions of a class.
+     *
+     * @param code the code of the class
+     */
+    void add(VMCode code) {
+        for (int start = 0, end; start < code.size(); start = end) {
+            end = start + 1;
+            while (end < code.size() && code.opcode(end) != VMCode.FUNCTION) end++;
+            if (code.opcode(start) == VMCode.FUNCTION && code.count(start) == 0) {
+                Candidate candidate = candidate(code, start + 1, end, className(code.name(start)));
+                if (candidate != null && candidate.body.size() <= limit) {
+                    candidates.put(code.name(start), candidate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the code of a class with the calls of the inline candidates replaced.
+     *
+     * @param  code    the code of the class
+     * @param  inlined the map to count the inlined calls in, by <i>caller</i><code>-&gt;</code><i>callee</i>
+     * @return         the new code
+     */
+    VMCode inline(VMCode code, Map<String, Integer> inlined) {
+        VMCode out = new VMCode();
+        String function = null;
+        for (int i = 0; i < code.size(); i++) {
+            if (code.opcode(i) == VMCode.FUNCTION) function = code.name(i);
+            Candidate candidate = code.opcode(i) == VMCode.CALL ? candidates.get(code.name(i)) : null;
+            if (candidate == null || candidate.nArgs != code.count(i) || function == null
+                    || candidate.className != null && !candidate.className.equals(className(function))) {
+                out.copy(code, i);
+                continue;
+            }
+            inlined.merge(function + "->" + code.name(i), 1, Integer::sum);
+            for (int j = 0; j < candidate.body.size(); j++) out.copy(candidate.body, j);
+            if (candidate.isVoid) {
+                if (isDo(code, i + 1)) {
+                    i++;
+                } else {
+                    out.push(Segment.CONSTANT, 0);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the candidate for the given function body, or <code>null</code> if the body has none of the shapes.
+     */
+    private static Candidate candidate(VMCode code, int start, int end, String className) {
+        if (end - start < 2 || code.opcode(end - 1) != VMCode.RETURN) return null;
+        boolean method = end - start >= 4 && isPush(code, start, Segment.ARGUMENT, 0)
+                && code.opcode(start + 1) == VMCode.POP && code.segment(start + 1) == Segment.POINTER
+                && code.index(start + 1) == 0;
+        int first = method ? start + 2 : start;
+        int last = end - 1;    // the return
+        int n = last - first;
+        boolean isVoid = n == 3 && isPush(code, last - 1, Segment.CONSTANT, 0);
+        Candidate candidate;
+        if (code.isConstant(first, last)) {
+            candidate = new Candidate(method ? 1 : 0, null, false);
+            if (method) candidate.body.pop(Segment.TEMP, 0);
+            candidate.body.pushConstant(code.constant(first, last));
+        } else if (!method && n == 1 && isPush(code, first, Segment.ARGUMENT, 0)) {
+            candidate = new Candidate(1, null, false);
+        } else if (!method && n == 1 && code.opcode(first) == VMCode.PUSH && code.segment(first) == Segment.STATIC) {
+            candidate = new Candidate(0, className, false);
+            candidate.body.push(Segment.STATIC, code.index(first));
+        } else if (!method && isVoid && isPush(code, first, Segment.ARGUMENT, 0)
+                && code.opcode(first + 1) == VMCode.POP && code.segment(first + 1) == Segment.STATIC) {
+            candidate = new Candidate(1, className, true);
+            candidate.body.pop(Segment.STATIC, code.index(first + 1));
+        } else if (method && n == 1 && isPush(code, first, Segment.POINTER, 0)) {
+            candidate = new Candidate(1, null, false);
+        } else if (method && n == 1 && code.opcode(first) == VMCode.PUSH && code.segment(first) == Segment.THIS) {
+            candidate = new Candidate(1, null, false);
+            candidate.body.pop(Segment.POINTER, 1);
+            candidate.body.push(Segment.THAT, code.index(first));
+        } else if (method && isVoid && isPush(code, first, Segment.ARGUMENT, 1)
+                && code.opcode(first + 1) == VMCode.POP && code.segment(first + 1) == Segment.THIS) {
+            candidate = new Candidate(2, null, true);
+            candidate.body.pop(Segment.TEMP, 0);
+            candidate.body.pop(Segment.POINTER, 1);
+            candidate.body.push(Segment.TEMP, 0);
+            candidate.body.pop(Segment.THAT, code.index(first + 1));
+        } else {
+            return null;
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns whether the instruction at the given index is the <code>pop temp 0</code> that discards the result of
+     * the call of a <code>do</code> statement. The <code>pop temp 0</code> of <code>let a[i] = f();</code> is followed
+     * by <code>pop pointer 1; push temp 0</code>, which reads the result back.
+     */
+    private static boolean isDo(VMCode code, int i) {
+        return i < code.size() && code.opcode(i) == VMCode.POP && code.segment(i) == Segment.TEMP && code.index(i) == 0
+                && !(i + 1 < code.size() && code.opcode(i + 1) == VMCode.POP && code.segment(i + 1) == Segment.POINTER
+                && code.index(i + 1) == 1);
+    }
+
+    private static boolean isPush(VMCode code, int i, Segment segment, int index) {
+        return code.opcode(i) == VMCode.PUSH && code.segment(i) == segment && code.index(i) == index;
+    }
+
+    private static String className(String function) {
+        return function.substring(0, function.indexOf('.'));
+    }
+}
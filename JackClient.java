@@ -0,0 +1,117 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This module is a thin command-line front end for the {@link CompileDaemon}. It accepts the same arguments as
+ * {@link JackCompiler}, sends them to the daemon, and reports the results in the same way. If no daemon is running,
+ * the sources are compiled in-process, as they always are with <code>--watch</code> and for standard input
+ * (<code>-</code>).
+ * <p>
+ * <b>Usage:</b> <code>java JackClient</code> <i>options</i> <i>source</i> ..., or <code>java JackClient
+ * --shutdown</code> to stop the daemon.
+ *
+ * @author Maarten Derks
+ */
+class JackClient {
+
+    public static void main(String[] args) throws Exception {
+        boolean shutdown = args.length == 1 && args[0].equals("--shutdown");
+        Options options = shutdown ? null : Options.parse(args);
+        if (options != null && (options.watch || options.sources.contains("-"))) {
+            // a watcher runs for as long as the client does, so it does not occupy the daemon; and the daemon cannot
+            // read the standard input of the client
+            JackCompiler.main(args);
+            return;
+        }
+
+        SocketChannel ch;
+        try {
+            ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+            ch.connect(UnixDomainSocketAddress.of(CompileDaemon.socketPath()));
+        } catch (IOException e) {
+            if (!shutdown) JackCompiler.main(args);
+            return;
+        }
+
+        int status;
+        try (SocketChannel c = ch;
+             BufferedReader in = new BufferedReader(Channels.newReader(c, StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(Channels.newWriter(c, StandardCharsets.UTF_8))) {
+            for (String arg : shutdown ? List.of("--shutdown") : options.toArgs()) {
+                out.println(arg);
+            }
+            out.println();
+            out.flush();
+
+            List<JackCompiler.Result> results = new ArrayList<>();
+            status = 2;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith("done ")) {
+                    status = Integer.parseInt(line.substring(5));
+                    break;
+                }
+                String[] fields = line.split("\t", 4);
+                JackCompiler.Result result = new JackCompiler.Result(new File(fields[2]));
+                result.nanos = Long.parseLong(fields[1]) * 1000;
+                result.upToDate = fields[0].equals("up-to-date");
+                if (fields[0].equals("error")) {
+                    result.error = fields.length > 3 ? fields[3] : fields[2];
+                } else if (fields[0].equals("ok") && fields.length > 3) {
+                    fields = fields[3].split("\t");
+                    int field = 0;
+                    if (options.optimize) {
+                        String[] counts = fields[field++].split(" ");
+                        result.instructions = Integer.parseInt(counts[0]);
+                        result.optimizedInstructions = Integer.parseInt(counts[1]);
+                        result.calls = Integer.parseInt(counts[2]);
+                        result.optimizedCalls = Integer.parseInt(counts[3]);
+                        result.reducedCalls = Integer.parseInt(counts[4]);
+                    }
+                    if (options.wholeProgram && field < fields.length) {
+                        String[] removed = fields[field++].split(" ");
+                        result.removedInstructions = Integer.parseInt(removed[0]);
+                        result.removed = new ArrayList<>(Arrays.asList(removed).subList(1, removed.length));
+                    }
+                    if (options.inline && field < fields.length) {
+                        String[] inlined = fields[field++].split(" ");
+                        result.inlined = new LinkedHashMap<>();
+                        for (int i = 1; i < inlined.length; i += 2) {
+                            result.inlined.put(inlined[i], Integer.parseInt(inlined[i + 1]));
+                        }
+                    }
+                    if (options.format.equals("asm") && field < fields.length) {
+                        result.hackInstructions = Integer.parseInt(fields[field++]);
+                    }
+                    if ((options.stats || options.statsJson != null) && field < fields.length) {
+                        String[] metrics = fields[field].split(" ");
+                        result.metrics.tokens = Integer.parseInt(metrics[0]);
+                        result.metrics.instructions = Integer.parseInt(metrics[1]);
+                        result.metrics.bytes = Long.parseLong(metrics[2]);
+                        result.metrics.allocated = Long.parseLong(metrics[3]);
+                        for (int i = 0; i < Metrics.PHASES.length; i++) {
+                            result.metrics.nanos[i] = Long.parseLong(metrics[4 + i]);
+                        }
+                    }
+                }
+                results.add(result);
+            }
+            if (options != null) {
+                status = Math.max(status, JackCompiler.report(results, options, System.out, System.err));
+            }
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+}
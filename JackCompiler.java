@@ -1,9 +1,30 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This module drives the compilation process. It operates on either a file name of the form
@@ -15,25 +36,627 @@ import java.util.Objects;
  *     <li>uses a {@link CompilationEngine}, a {@link SymbolTable}, and a {@link VMWriter} for parsing the input file
  *     and emitting the translated VM code into the output file.</li>
  * </ol>
+ * The compilation engine emits {@link VMCode}, which with <code>-O</code> has its constant expressions folded and its
+ * string constants pooled, and is optimized by the {@link PeepholeOptimizer}, and is written as VM text, or with
+ * <code>--format vmb</code> in a binary format to an <i>Xxx</i><code>.vmb</code> file. With <code>--ast</code>, the
+ * class is instead parsed into a {@link SyntaxTree} by a {@link JackParser}, which a {@link CodeGenerator} then
+ * compiles into the same code in a separate pass. With <code>--pipeline</code>, each file is lexed, compiled and
+ * written by a {@link Pipeline} of three threads. With <code>--whole-program</code>, the classes are only written once
+ * all of them have been compiled, without the functions that the program cannot call (see {@link CallGraph}); with
+ * <code>--inline</code>, once the calls of trivial functions have been inlined (see {@link Inliner}). With
+ * <code>--bundle</code>, all classes are written into a single {@link Bundle} once all of them have been compiled.
+ * Before any class is compiled, the declarations of all classes are read into a {@link SignatureIndex}, with which
+ * the calls between classes are resolved and checked. The files of a folder are compiled in parallel by a bounded
+ * pool of worker threads (see {@link Options#jobs}).
+ * Every compilation engine has its own tokenizer, symbol tables and writer, so the output does not depend on the
+ * number of workers. Errors are reported in file name order once all files have been compiled.
+ * <p>
+ * With {@link Options#incremental}, a {@link BuildManifest} in the output folder records the content hashes of the
+ * sources and outputs, and files that have not changed since the previous build are not compiled again, unless a
+ * declaration of any class changed. Outputs are only rewritten if their content changes.
+ * <p>
+ * The source <code>-</code> compiles standard input to standard output; see {@link EmbeddedCompiler} for compiling
+ * in memory. With <code>--watch</code>, a {@link Watcher} keeps compiling the sources as they change.
  *
  * @author Maarten Derks
  */
 class JackCompiler {
 
+    /**
+     * The compiler version, recorded in the {@link BuildManifest}. Must be changed whenever the generated code
+     * changes for the same source and options.
+     */
+    static final String VERSION = "1.5";
+
     public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options.watch) {
+            Watcher.watch(options, System.out, System.err);
+            return;
+        }
+        if (options.sources.equals(List.of("-"))) {
+            try {
+                VMCode code = translate(new JackTokenizer(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                        options, null, null);
+                write(code, options, Channels.newChannel(System.out));
+            } catch (RuntimeException | StackOverflowError e) {
+                System.err.println("-: " + e);
+                System.exit(1);
+            }
+            return;
+        }
+        int status = report(build(options), options, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * The outcome of compiling a single source file.
+     */
+    static class Result {
+        final File file;
+        String error;
+        boolean upToDate;
+        long nanos;
+        int instructions = -1;
+        int optimizedInstructions = -1;
+        int calls;
+        int optimizedCalls;
+        int reducedCalls;
+        VMCode code;
+        List<String> removed;
+        int removedInstructions;
+        Map<String, Integer> inlined;
+        int hackInstructions = -1;
+        byte[] output;
+        final Metrics metrics;
+
+        Result(File file) {
+            this.file = file;
+            metrics = new Metrics(file.getPath());
+        }
+    }
+
+    /**
+     * Compiles all sources of the given options, loading and saving the build manifests if the build is
+     * incremental.
+     *
+     * @param  options the compiler options
+     * @return         the results, in source file order
+     */
+    static List<Result> build(Options options) throws IOException, InterruptedException {
         List<File> files = new ArrayList<>();
+        for (String source : options.sources) {
+            files.addAll(sourceFiles(source));
+        }
+        if (options.outputDir != null) {
+            Files.createDirectories(new File(options.outputDir).toPath());
+        }
+        SignatureIndex index = new SignatureIndex();
+        index.update(files, options);
+        Map<File, BuildManifest> manifests = manifests(files, options, index);
+        List<Result> results = compile(files, options, manifests, index);
+        if (options.linked()) {
+            link(results, options);
+        }
+        if (options.bundle != null && !options.format.equals("asm")) {
+            bundle(results, options);
+        }
+        for (BuildManifest manifest : manifests.values()) {
+            manifest.save();
+        }
+        index.save();
+        return results;
+    }
+
+    /**
+     * Loads the build manifests of the output folders of the given files, if the build is incremental. The manifests
+     * of a build whose signatures differ from those of the previous build are empty, as any class may depend on them.
+     *
+     * @param  files   the source files
+     * @param  options the compiler options
+     * @param  index   the signatures of the classes of the build
+     * @return         the manifests by output folder, empty if the build is not incremental
+     */
+    static Map<File, BuildManifest> manifests(List<File> files, Options options, SignatureIndex index)
+            throws IOException {
+        Map<File, BuildManifest> manifests = new HashMap<>();
+        if (options.incremental) {
+            for (File f : files) {
+                File dir = outputFile(f, options).getParentFile();
+                if (!manifests.containsKey(dir)) {
+                    manifests.put(dir, new BuildManifest(dir,
+                            VERSION + " " + options.fingerprint() + " " + index.fingerprint()));
+                }
+            }
+        }
+        return manifests;
+    }
 
-        File in = new File(args[0]);
+    /**
+     * Writes the classes of a build that needs the code of all classes: with {@link Options#inline}, the calls of
+     * trivial functions are inlined first, and with {@link Options#wholeProgram}, only the live functions are written.
+     * With <code>--format asm</code>, the classes are translated into a single Hack program, see {@link #assemble}.
+     * Nothing is written if a file failed to compile, because the code of the failed class is not known. The output
+     * file of a class without live functions is removed.
+     *
+     * @param results the results of the build, with the code of each class
+     * @param options the compiler options
+     */
+    static void link(List<Result> results, Options options) throws IOException {
+        for (Result result : results) {
+            if (result.error != null) return;
+        }
+        if (options.inline) {
+            Inliner inliner = new Inliner(options.inlineLimit);
+            for (Result result : results) inliner.add(result.code);
+            for (Result result : results) {
+                result.metrics.begin(Metrics.LINK);
+                result.inlined = new LinkedHashMap<>();
+                result.code = inliner.inline(result.code, result.inlined);
+                if (options.optimize) result.code = new PeepholeOptimizer().optimize(result.code);
+                result.metrics.end();
+            }
+        }
+        Set<String> live = null;
+        if (options.wholeProgram) {
+            CallGraph graph = new CallGraph();
+            for (Result result : results) graph.add(result.code);
+            if (options.roots.stream().noneMatch(graph::contains)) {
+                throw new IllegalArgumentException("None of the roots " + String.join(", ", options.roots)
+                        + " is defined by the program");
+            }
+            live = graph.reachable(options.roots);
+        }
+        for (Result result : results) {
+            VMCode code = result.code;
+            if (live != null) {
+                result.metrics.begin(Metrics.LINK);
+                result.removed = new ArrayList<>();
+                code = CallGraph.retain(result.code, live, result.removed);
+                result.removedInstructions = result.code.size() - code.size();
+            }
+            if (options.format.equals("asm")) {
+                result.code = code;
+                result.metrics.end();
+                continue;
+            }
+            result.code = null;
+            result.metrics.instructions = code.size();
+            result.metrics.begin(Metrics.WRITE);
+            File out = outputFile(result.file, options);
+            if (options.bundle != null) {
+                if (code.size() > 0) result.output = encode(code, options);
+                if (result.output != null) result.metrics.bytes = result.output.length;
+            } else if (code.size() == 0) {
+                Files.deleteIfExists(out.toPath());
+            } else {
+                try (FileChannel ch = open(out)) {
+                    write(code, options, ch);
+                }
+                result.metrics.bytes = Files.size(out.toPath());
+            }
+            result.metrics.end();
+        }
+        if (options.format.equals("asm")) {
+            assemble(results, options);
+        }
+    }
+
+    /**
+     * Translates the classes of a build into one Hack program with an {@link AsmWriter}, and writes it to the
+     * {@link #programFile}. The instruction count of each class is recorded in its result and its metrics; that of
+     * the class with the entry point includes the bootstrap and the shared routines. A call of a function that the
+     * program does not define is an error of the calling class, and then nothing is written.
+     *
+     * @param results the results of the build, with the code of each class
+     * @param options the compiler options
+     */
+    private static void assemble(List<Result> results, Options options) throws IOException {
+        List<VMCode> program = new ArrayList<>();
+        for (Result result : results) program.add(result.code);
+        AsmWriter asm = new AsmWriter(program, options.roots);
+        boolean failed = false;
+        for (Result result : results) {
+            String undefined = asm.undefined(result.code);
+            if (undefined != null) {
+                result.error = result.file.getPath() + ": Call of undefined function " + undefined;
+                failed = true;
+            }
+        }
+        int runtime = asm.size();
+        for (Result result : results) {
+            if (!failed) {
+                result.metrics.begin(Metrics.LINK);
+                result.hackInstructions = asm.translate(result.code);
+                if (asm.definesEntry(result.code)) result.hackInstructions += runtime;
+                result.metrics.instructions = result.hackInstructions;
+                result.metrics.end();
+            }
+            result.code = null;
+        }
+        if (failed) return;
+        Metrics metrics = results.get(0).metrics;
+        metrics.begin(Metrics.WRITE);
+        File out = programFile(options);
+        try (FileChannel ch = open(out)) {
+            asm.writeTo(ch);
+        }
+        metrics.end();
+    }
+
+    /**
+     * Returns the file that a program written as a whole goes to: the bundle of the options if there is one, or else
+     * <i>Xxx</i><code>.asm</code> named after the first source, a folder <i>Xxx</i> or a file <i>Xxx</i><code>.jack</code>,
+     * in the output folder, or else in that folder or next to that file.
+     *
+     * @param  options the compiler options
+     * @return         the output file
+     */
+    static File programFile(Options options) {
+        if (options.bundle != null) return new File(options.bundle).getAbsoluteFile();
+        File source = new File(options.sources.get(0)).getAbsoluteFile().toPath().normalize().toFile();
+        String name = source.getName().replaceFirst("[.]jack$", "") + "." + options.format;
+        File dir = options.outputDir != null ? new File(options.outputDir)
+                : source.isDirectory() ? source : source.getParentFile();
+        return new File(dir, name).getAbsoluteFile();
+    }
+
+    /**
+     * Writes the output of the classes of a build into the {@link Bundle} of the options, unless a file failed to
+     * compile. Classes without code, such as those whose functions were all removed, are left out.
+     *
+     * @param results the results of the build, with the output of each class
+     * @param options the compiler options
+     */
+    static void bundle(List<Result> results, Options options) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<byte[]> outputs = new ArrayList<>();
+        for (Result result : results) {
+            if (result.error != null) return;
+            if (result.output == null) continue;
+            names.add(result.file.getName().replaceFirst("[.][^.]+$", ""));
+            outputs.add(result.output);
+            result.output = null;
+        }
+        Bundle.write(new File(options.bundle), names, outputs, options.format.equals("vmb"));
+    }
+
+    /**
+     * Prints the errors of a build, the instruction counts of each compiled class if the build is optimized, the
+     * removed functions of each class if the build is a whole-program build, a summary line if the build is
+     * incremental or whole-program, and the {@link Metrics} of the build if the options ask for them.
+     *
+     * @param  results the results of the build
+     * @param  options the compiler options
+     * @param  out     the stream for the summary
+     * @param  err     the stream for the errors
+     * @return         the exit status: 0 if all files compiled successfully, 1 otherwise
+     */
+    static int report(List<Result> results, Options options, PrintStream out, PrintStream err) {
+        int upToDate = 0, compiled = 0, failed = 0, removed = 0, removedInstructions = 0, inlined = 0;
+        for (Result result : results) {
+            if (result.error != null) {
+                err.println(result.error);
+                failed++;
+            } else if (result.upToDate) {
+                upToDate++;
+            } else {
+                compiled++;
+                if (result.instructions >= 0) {
+                    out.println(result.file.getName().replaceFirst("[.][^.]+$", "") + ": " + result.instructions
+                            + " -> " + result.optimizedInstructions + " instructions, " + result.calls + " -> "
+                            + result.optimizedCalls + " calls"
+                            + (result.reducedCalls > 0 ? " (" + result.reducedCalls + " reduced)" : ""));
+                }
+                if (result.removed != null && !result.removed.isEmpty()) {
+                    out.println(result.file.getName().replaceFirst("[.][^.]+$", "") + ": removed "
+                            + String.join(", ", result.removed) + " (" + result.removedInstructions + " instructions)");
+                    removed += result.removed.size();
+                    removedInstructions += result.removedInstructions;
+                }
+                if (result.inlined != null && !result.inlined.isEmpty()) {
+                    StringBuilder sb = new StringBuilder();
+                    for (Map.Entry<String, Integer> e : result.inlined.entrySet()) {
+                        sb.append(sb.length() == 0 ? "" : ", ").append(e.getKey()).append(" (").append(e.getValue())
+                                .append(")");
+                        inlined += e.getValue();
+                    }
+                    out.println(result.file.getName().replaceFirst("[.][^.]+$", "") + ": inlined " + sb);
+                }
+            }
+        }
+        if (options.incremental) {
+            out.println(upToDate + " up to date, " + compiled + " compiled, " + failed + " failed");
+        }
+        if (options.inline && failed == 0) {
+            out.println("Inlined " + inlined + " call" + (inlined == 1 ? "" : "s"));
+        }
+        if (options.format.equals("asm") && failed == 0) {
+            int hack = 0;
+            for (Result result : results) hack += Math.max(result.hackInstructions, 0);
+            out.println("Hack program: " + hack + " instructions");
+        }
+        if (options.wholeProgram && failed == 0) {
+            out.println("Removed " + removed + " unreachable function" + (removed == 1 ? "" : "s") + ", "
+                    + removedInstructions + " instructions");
+        }
+        if (options.stats) out.print(Metrics.summary(results));
+        if (options.statsJson != null) {
+            try {
+                Files.writeString(new File(options.statsJson).toPath(), Metrics.json(results));
+            } catch (IOException e) {
+                err.println(options.statsJson + ": " + e);
+                return 1;
+            }
+        }
+        return failed > 0 ? 1 : 0;
+    }
+
+    /**
+     * Returns the source files to compile: the given file, or the <code>.jack</code> files of the given folder in
+     * file name order.
+     *
+     * @param  source a <code>.jack</code> file or a folder
+     * @return        the files to compile
+     */
+    static List<File> sourceFiles(String source) {
+        List<File> files = new ArrayList<>();
+
+        File in = new File(source);
         if (in.isFile()) {
             files.add(in.getAbsoluteFile());
+        } else if (!in.isDirectory()) {
+            throw new IllegalArgumentException("No such file or folder: " + source);
         } else {
             FilenameFilter filter = (dir, name) -> name.matches(".*.jack");
             files.addAll(Arrays.asList(Objects.requireNonNull(in.listFiles(filter))));
+            files.sort(null);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the output file for the given source file: <i>Xxx</i><code>.vm</code> (or <code>.vmb</code>) in the
+     * output folder, or next to the source file if no output folder is given.
+     *
+     * @param  source  the source file
+     * @param  options the compiler options
+     * @return         the output file
+     */
+    static File outputFile(File source, Options options) {
+        String name = source.getName().replaceFirst("[.][^.]+$", "." + options.format);
+        File dir = options.outputDir != null ? new File(options.outputDir) : source.getAbsoluteFile().getParentFile();
+        return new File(dir, name).getAbsoluteFile();
+    }
+
+    /**
+     * Compiles the given files, using up to {@link Options#jobs} worker threads. Each worker has at most one input
+     * and one output file open at a time, so the number of workers also bounds the number of open files.
+     *
+     * @param  files     the source files
+     * @param  options   the compiler options
+     * @param  manifests the manifests of the previous build by output folder, empty to compile all files
+     * @param  index     the signatures of the classes of the build
+     * @return           the results, in the order of the given files
+     */
+    static List<Result> compile(List<File> files, Options options, Map<File, BuildManifest> manifests,
+            SignatureIndex index) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        int jobs = Math.min(options.jobs, files.size());
+        if (jobs <= 1) {
+            for (File f : files) {
+                results.add(compile(f, options, manifests, index));
+            }
+            return results;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (File f : files) {
+                futures.add(pool.submit(() -> compile(f, options, manifests, index)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Result result = new Result(files.get(i));
+                    result.error = files.get(i).getPath() + ": " + e.getCause();
+                    results.add(result);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Compiles a single file into its <code>.vm</code> file.
+     *
+     * @param  f         the source file
+     * @param  options   the compiler options
+     * @param  manifests the manifests of the previous build by output folder
+     * @param  index     the signatures of the classes of the build
+     * @return           the result
+     */
+    private static Result compile(File f, Options options, Map<File, BuildManifest> manifests,
+            SignatureIndex index) {
+        long start = System.nanoTime();
+        Result result = new Result(f);
+        Metrics metrics = result.metrics;
+        metrics.beginFile();
+        File out = outputFile(f, options);
+        BuildManifest manifest = manifests.get(out.getParentFile());
+        try {
+            if (options.linked()) {
+                // written once the code of all classes is known, see link
+                metrics.begin(Metrics.READ);
+                result.code = translate(new JackTokenizer(f), options, result, index);
+                return result;
+            }
+            if (options.bundle != null) {
+                // written once all classes have been compiled, see bundle
+                metrics.begin(Metrics.READ);
+                result.output = encode(new JackTokenizer(f), options, result, index);
+                metrics.bytes = result.output.length;
+                return result;
+            }
+            if (manifest == null) {
+                if (options.pipeline) {
+                    metrics.begin(Metrics.READ);
+                    JackTokenizer jt = new JackTokenizer(f);
+                    metrics.begin(Metrics.COMPILE);
+                    try (FileChannel ch = open(out)) {
+                        Pipeline.compile(jt, options, ch, result, index);
+                    } catch (Exception | StackOverflowError e) {
+                        Files.deleteIfExists(out.toPath());
+                        throw e;
+                    }
+                    metrics.tokens = jt.tokenCount();
+                    metrics.bytes = Files.size(out.toPath());
+                    return result;
+                }
+                metrics.begin(Metrics.READ);
+                VMCode code = translate(new JackTokenizer(f), options, result, index);
+                metrics.begin(Metrics.WRITE);
+                try (FileChannel ch = open(out)) {
+                    write(code, options, ch);
+                }
+                metrics.bytes = Files.size(out.toPath());
+                return result;
+            }
+
+            metrics.begin(Metrics.READ);
+            byte[] source = Files.readAllBytes(f.toPath());
+            String sourceHash = BuildManifest.hash(source);
+            if (manifest.isUpToDate(f, sourceHash, out)) {
+                result.upToDate = true;
+                return result;
+            }
+            byte[] vm = encode(new JackTokenizer(ByteBuffer.wrap(source)), options, result, index);
+            if (!out.isFile() || !Arrays.equals(vm, Files.readAllBytes(out.toPath()))) {
+                Files.write(out.toPath(), vm);
+            }
+            metrics.bytes = vm.length;
+            manifest.record(f, sourceHash, BuildManifest.hash(vm));
+        } catch (Exception | StackOverflowError e) {
+            // statements still nest by recursion, so a deep enough nesting is reported like any other error
+            result.error = f.getPath() + ": " + e;
+        } finally {
+            metrics.endFile();
+            result.nanos = System.nanoTime() - start;
         }
+        return result;
+    }
+
+    /**
+     * Compiles the class of the given tokenizer, with a {@link Pipeline} if the options ask for it, and returns its
+     * output in the format of the options.
+     */
+    private static byte[] encode(JackTokenizer jt, Options options, Result result, SignatureIndex index)
+            throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (options.pipeline) {
+            result.metrics.begin(Metrics.COMPILE);
+            Pipeline.compile(jt, options, Channels.newChannel(bytes), result, index);
+            result.metrics.tokens = jt.tokenCount();
+            result.metrics.begin(Metrics.WRITE);
+        } else {
+            VMCode code = translate(jt, options, result, index);
+            result.metrics.begin(Metrics.WRITE);
+            write(code, options, Channels.newChannel(bytes));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(VMCode code, Options options) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(code, options, Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
 
-        for (File f : files) {
-            CompilationEngine ce = new CompilationEngine(f, new File(f.getAbsolutePath().replaceFirst("[.][^.]+$", ".vm")));
+    private static FileChannel open(File out) throws IOException {
+        return FileChannel.open(out.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Compiles the class of the given tokenizer, with the {@link CompilationEngine} or, with {@link Options#ast}, the
+     * {@link JackParser} and {@link CodeGenerator}, and runs the {@link PeepholeOptimizer} over its code if the options
+     * ask for it.
+     *
+     * @param  jt      the tokenizer
+     * @param  options the compiler options
+     * @param  result  the result to record the instruction and call counts in, or <code>null</code>
+     * @param  index   the signatures of the classes of the build, or <code>null</code>
+     * @return         the code of the class
+     */
+    static VMCode translate(JackTokenizer jt, Options options, Result result, SignatureIndex index) {
+        Metrics metrics = result != null ? result.metrics : null;
+        if (metrics != null) metrics.begin(Metrics.COMPILE);
+        VMCode code;
+        int instructionsSaved, callsSaved, callsReduced;
+        if (options.ast) {
+            CodeGenerator cg = new CodeGenerator(new JackParser(jt).parseClass(), options);
+            cg.resolve(index);
+            code = cg.generate();
+            instructionsSaved = cg.instructionsSaved();
+            callsSaved = cg.callsSaved();
+            callsReduced = cg.callsReduced();
+        } else {
+            CompilationEngine ce = new CompilationEngine(jt, options);
+            ce.resolve(index);
             ce.compileClass();
+            code = ce.code();
+            instructionsSaved = ce.instructionsSaved();
+            callsSaved = ce.callsSaved();
+            callsReduced = ce.callsReduced();
+        }
+        if (metrics != null) metrics.tokens = jt.tokenCount();
+        if (!options.optimize) {
+            if (metrics != null) metrics.instructions = code.size();
+            return code;
+        }
+        if (metrics != null) metrics.begin(Metrics.OPTIMIZE);
+        VMCode optimized = new PeepholeOptimizer().optimize(code);
+        if (result != null) {
+            result.instructions = code.size() + instructionsSaved;
+            result.optimizedInstructions = optimized.size();
+            result.calls = code.occurrences(VMCode.CALL) + callsSaved;
+            result.optimizedCalls = optimized.occurrences(VMCode.CALL);
+            result.reducedCalls = callsReduced;
+            metrics.instructions = optimized.size();
+        }
+        return optimized;
+    }
+
+    /**
+     * Writes the given code in the output format of the given options.
+     *
+     * @param code    the code
+     * @param options the compiler options
+     * @param out     the output channel, which is closed afterwards
+     */
+    static void write(VMCode code, Options options, WritableByteChannel out) throws IOException {
+        if (options.format.equals("asm")) {
+            AsmWriter asm = new AsmWriter(List.of(code), options.roots);
+            String undefined = asm.undefined(code);
+            if (undefined != null) throw new IllegalStateException("Call of undefined function " + undefined);
+            asm.translate(code);
+            try (out) {
+                asm.writeTo(out);
+            }
+        } else if (options.format.equals("vmb")) {
+            try (OutputStream os = new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16)) {
+                code.writeBinary(os);
+            }
+        } else {
+            VMWriter vmw = new VMWriter(out);
+            code.writeTo(vmw);
+            vmw.close();
         }
     }
 }
@@ -0,0 +1,331 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * This module parses a class from a {@link JackTokenizer} into a {@link SyntaxTree}, which the {@link CodeGenerator}
+ * compiles in a separate pass. It follows the same grammar, and reports the same syntax errors, as the
+ * {@link CompilationEngine}, which parses and emits code in a single pass.
+ *
+ * @author Maarten Derks
+ */
+class JackParser {
+
+    private final JackTokenizer jt;
+    private final SyntaxTree tree = new SyntaxTree();
+    private final Deque<Nested> enclosing = new ArrayDeque<>();    // the expressions that enclose the current one
+    private int term;                                              // the term that was parsed last
+
+    /**
+     * Creates a new parser that gets its input from the given tokenizer.
+     *
+     * @param jt the tokenizer
+     */
+    JackParser(JackTokenizer jt) {
+        this.jt = jt;
+        jt.advance();
+    }
+
+    /**
+     * Parses a complete class.
+     *
+     * @return the syntax tree of the class
+     */
+    SyntaxTree parseClass() {
+        jt.expect(Keyword.CLASS);
+        int node = tree.add(SyntaxTree.CLASS, tree.intern(jt.expectIdentifier()), 0);
+        jt.expect('{');
+        while (jt.isKeyword(JackTokenizer.CLASS_VAR_DEC)) {
+            Kind kind = jt.expect(JackTokenizer.CLASS_VAR_DEC) == Keyword.STATIC ? Kind.STATIC : Kind.FIELD;
+            parseVarNames(node, jt.expectType(JackTokenizer.TYPE), kind);
+        }
+        while (jt.isKeyword(JackTokenizer.SUBROUTINE_DEC)) {
+            tree.append(node, parseSubroutine());
+        }
+        jt.expect('}');
+        return tree;
+    }
+
+    /**
+     * Parses a comma-separated list of variable names, and the terminating semicolon.
+     */
+    private void parseVarNames(int parent, String type, Kind kind) {
+        int b = tree.intern(type) << 3 | kind.ordinal();
+        tree.append(parent, tree.add(SyntaxTree.VAR_DEC, tree.intern(jt.expectIdentifier()), b));
+        while (jt.isSymbol(',')) {
+            jt.expect(',');
+            tree.append(parent, tree.add(SyntaxTree.VAR_DEC, tree.intern(jt.expectIdentifier()), b));
+        }
+        jt.expect(';');
+    }
+
+    /**
+     * Parses a complete method, function, or constructor.
+     */
+    private int parseSubroutine() {
+        Keyword type = jt.expect(JackTokenizer.SUBROUTINE_DEC);
+        jt.expectType(JackTokenizer.RETURN_TYPE);
+        int node = tree.add(SyntaxTree.SUBROUTINE, tree.intern(jt.expectIdentifier()), type.ordinal());
+        jt.expect('(');
+        if (jt.isKeyword(JackTokenizer.TYPE) || jt.tokenType() == TokenType.IDENTIFIER) {
+            parseParameter(node);
+            while (jt.isSymbol(',')) {
+                jt.expect(',');
+                parseParameter(node);
+            }
+        }
+        jt.expect(')');
+        jt.expect('{');
+        while (jt.isKeyword(1 << Keyword.VAR.ordinal())) {
+            jt.expect(Keyword.VAR);
+            parseVarNames(node, jt.expectType(JackTokenizer.TYPE), Kind.VAR);
+        }
+        tree.append(node, parseStatements());
+        jt.expect('}');
+        return node;
+    }
+
+    private void parseParameter(int parent) {
+        int type = tree.intern(jt.expectType(JackTokenizer.TYPE));
+        tree.append(parent, tree.add(SyntaxTree.VAR_DEC, tree.intern(jt.expectIdentifier()),
+                type << 3 | Kind.ARG.ordinal()));
+    }
+
+    /**
+     * Parses a sequence of statements into a {@link SyntaxTree#BLOCK} node. Does not handle the enclosing curly
+     * bracket tokens { and }.
+     */
+    private int parseStatements() {
+        int node = tree.add(SyntaxTree.BLOCK, 0, 0);
+        while (jt.isKeyword(JackTokenizer.STATEMENT)) {
+            tree.append(node, parseStatement());
+        }
+        return node;
+    }
+
+    private int parseStatement() {
+        int node;
+        switch (jt.expect(JackTokenizer.STATEMENT)) {
+            case LET:
+                node = tree.add(SyntaxTree.LET, tree.intern(jt.expectIdentifier()), 0);
+                if (jt.isSymbol('[')) {
+                    jt.expect('[');
+                    tree.append(node, parseExpression());
+                    jt.expect(']');
+                    tree.setB(node, 1);
+                }
+                jt.expect('=');
+                tree.append(node, parseExpression());
+                jt.expect(';');
+                return node;
+            case IF:
+                node = tree.add(SyntaxTree.IF, 0, 0);
+                tree.append(node, parseCondition());
+                tree.append(node, parseBlock());
+                if (jt.isKeyword(1 << Keyword.ELSE.ordinal())) {
+                    jt.expect(Keyword.ELSE);
+                    tree.append(node, parseBlock());
+                }
+                return node;
+            case WHILE:
+                node = tree.add(SyntaxTree.WHILE, 0, 0);
+                tree.append(node, parseCondition());
+                tree.append(node, parseBlock());
+                return node;
+            case DO:
+                node = tree.add(SyntaxTree.DO, 0, 0);
+                tree.append(node, parseExpression());
+                jt.expect(';');
+                return node;
+            default:
+                node = tree.add(SyntaxTree.RETURN, 0, 0);
+                if (!jt.isSymbol(';')) tree.append(node, parseExpression());
+                jt.expect(';');
+                return node;
+        }
+    }
+
+    private int parseCondition() {
+        jt.expect('(');
+        int node = parseExpression();
+        jt.expect(')');
+        return node;
+    }
+
+    private int parseBlock() {
+        jt.expect('{');
+        int node = parseStatements();
+        jt.expect('}');
+        return node;
+    }
+
+    /**
+     * Parses an expression. Operators have no precedence and associate to the left. Terms that contain expressions of
+     * their own, i.e. parenthesized expressions, array entries and the arguments of subroutine calls, are parsed with
+     * an explicit stack of {@link Nested} expressions rather than by recursion, as in the {@link CompilationEngine}, so
+     * that the depth of nesting is only limited by the heap.
+     */
+    private int parseExpression() {
+        Nested e = new Nested(Nested.EXPRESSION, -1);
+        while (true) {
+            while (jt.isSymbol('-') || jt.isSymbol('~')) {
+                int node = tree.add(SyntaxTree.UNARY, jt.symbol(), 0);
+                jt.advance();
+                if (e.unary < 0) {
+                    e.unary = node;
+                } else {
+                    tree.append(e.operand, node);
+                }
+                e.operand = node;
+            }
+            Nested nested = parseTerm();
+            if (nested != null) {
+                enclosing.push(e);
+                e = nested;
+                continue;
+            }
+            // the term is complete, and with it every nested expression that ends after it
+            int node = term;
+            while (true) {
+                completeTerm(e, node);
+                if (jt.isOperator()) {
+                    e.binary = tree.add(SyntaxTree.BINARY, jt.symbol(), 0);
+                    jt.advance();
+                    tree.append(e.binary, e.left);
+                    break;
+                }
+                if (e.kind == Nested.EXPRESSION) return e.left;
+                if (e.kind == Nested.ARGUMENTS && jt.isSymbol(',')) {
+                    jt.expect(',');
+                    tree.append(e.node, e.left);
+                    break;
+                }
+                node = close(e);
+                e = enclosing.pop();
+            }
+        }
+    }
+
+    /**
+     * An expression that is being parsed: the whole expression, or one nested in a term.
+     */
+    private static class Nested {
+
+        static final int EXPRESSION = 0, PARENTHESES = 1, ARRAY = 2, ARGUMENTS = 3;
+
+        final int kind;
+        final int node;             // the array entry or call that the expression belongs to, or -1
+        int left;                   // the expression up to the current term
+        int binary = -1;            // the operator before the current term, or -1 for the first term
+        int unary = -1;             // the outermost unary operator of the current term, or -1
+        int operand;                // the innermost unary operator of the current term
+
+        Nested(int kind, int node) {
+            this.kind = kind;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Adds a term that has just been parsed to its unary operators, and the result to the operator before the term.
+     *
+     * @param e    the expression of the term
+     * @param node the term
+     */
+    private void completeTerm(Nested e, int node) {
+        if (e.unary >= 0) {
+            tree.append(e.operand, node);
+            node = e.unary;
+            e.unary = -1;
+        }
+        if (e.binary >= 0) {
+            tree.append(e.binary, node);
+            node = e.binary;
+            e.binary = -1;
+        }
+        e.left = node;
+    }
+
+    /**
+     * Ends a nested expression.
+     *
+     * @param  e the nested expression
+     * @return   the term that contains the expression
+     */
+    private int close(Nested e) {
+        switch (e.kind) {
+            case Nested.PARENTHESES:
+                jt.expect(')');
+                return e.left;
+            case Nested.ARRAY:
+                jt.expect(']');
+                tree.append(e.node, e.left);
+                return e.node;
+            default:
+                tree.append(e.node, e.left);
+                jt.expect(')');
+                return e.node;
+        }
+    }
+
+    /**
+     * Parses a <i>term</i>, after its unary operators. If the current token is an <i>identifier</i>, a single
+     * look-ahead token, which may be one of "[", "(", or ".", distinguishes between a <i>variable</i>, an <i>array
+     * entry</i>, and a <i>subroutine call</i>. A term that contains an expression is parsed up to that expression,
+     * which the caller parses and then {@link #close closes}.
+     *
+     * @return the nested expression that the term continues with, or <code>null</code> if the term is complete, in
+     *         which case it is in {@link #term}
+     */
+    private Nested parseTerm() {
+        if (jt.tokenType() == null) throw jt.error("a term");
+        switch (jt.tokenType()) {
+            case INT_CONST:
+                term = tree.add(SyntaxTree.INT, jt.intVal(), 0);
+                jt.advance();
+                return null;
+            case STRING_CONST:
+                term = tree.add(SyntaxTree.STRING, tree.intern(jt.stringVal()), 0);
+                jt.advance();
+                return null;
+            case KEYWORD:
+                if (!jt.isKeyword(JackTokenizer.KEYWORD_CONSTANT)) throw jt.error("a term");
+                term = tree.add(SyntaxTree.KEYWORD, jt.keyWord().ordinal(), 0);
+                jt.advance();
+                return null;
+            case IDENTIFIER:
+                int name = tree.intern(jt.identifier());
+                jt.advance();
+                if (jt.isSymbol('[')) {
+                    jt.expect('[');
+                    return new Nested(Nested.ARRAY, tree.add(SyntaxTree.ARRAY, name, 0));
+                } else if (jt.isSymbol('.')) {
+                    jt.expect('.');
+                    return parseArguments(tree.add(SyntaxTree.CALL, name, tree.intern(jt.expectIdentifier())));
+                } else if (jt.isSymbol('(')) {
+                    return parseArguments(tree.add(SyntaxTree.CALL, -1, name));
+                }
+                term = tree.add(SyntaxTree.VARIABLE, name, 0);
+                return null;
+            default:
+                if (!jt.isSymbol('(')) throw jt.error("a term");
+                jt.expect('(');
+                return new Nested(Nested.PARENTHESES, -1);
+        }
+    }
+
+    /**
+     * Parses the "(" of the arguments of a call, and the ")" as well if there are no arguments. The position of the "("
+     * is kept in the tree.
+     *
+     * @param  node the call
+     * @return      the nested expression of the first argument, or <code>null</code> if the call is complete
+     */
+    private Nested parseArguments(int node) {
+        tree.setPosition(node, jt.line(), jt.column());
+        jt.expect('(');
+        if (!jt.isSymbol(')')) return new Nested(Nested.ARGUMENTS, node);
+        jt.expect(')');
+        term = node;
+        return null;
+    }
+}
@@ -1,34 +1,402 @@
 import java.io.File;
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * This module ignores all comments and white space in the input stream and enables accessing the input one token at a
  * time. Also, it parses and provides the <i>type</i> of each token, as defined by the Jack grammar.
+ * <p>
+ * The input is scanned by a table-driven DFA: every character is mapped to a character class, and the next state is
+ * looked up in a transition table indexed by the current state and that class. Each token is classified exactly once,
+ * when it is produced, so the accessors below are simple field reads. The line and column of a token are only
+ * computed when they are asked for, e.g. for an error message.
+ * <p>
+ * Files smaller than {@link #MAP_THRESHOLD} bytes are read in a single bulk read, larger files are memory-mapped; the
+ * file is closed before the constructor returns either way. The bytes are decoded as UTF-8, with a fast path for
+ * ASCII, into a window of at most {@link #WINDOW} characters, which is refilled as the scanner reaches its end. Only
+ * the token being scanned is kept when the window moves, not the comments and white space before it, so memory use
+ * does not depend on the size of the file, only on that of its longest token. The newlines that leave the window are
+ * counted on the way out, so that line and column numbers stay exact.
+ * <p>
+ * For parsers, the current token can be matched against a symbol, or against a set of keywords given as a bit mask of
+ * {@link Keyword} ordinals (see the constants below), and <code>expect</code> routines check the current token and
+ * advance over it, or throw an {@link IllegalStateException} that gives the line and column of the token.
+ * <p>
+ * With {@link #lexAhead()}, the input is scanned on a separate lexer thread, ahead of the parser, and handed over in
+ * batches of tokens through a bounded ring of {@link #BATCHES} buffers: the lexer blocks when all buffers are full,
+ * and the parser blocks when all buffers are empty.
  *
  * @author Maarten Derks
  */
 class JackTokenizer {
 
-    private final Scanner sc;
-    private char nextChar;
-    private String token;
+    // character classes
+    private static final int C_WS = 0, C_NEWLINE = 1, C_LETTER = 2, C_DIGIT = 3, C_SYMBOL = 4, C_SLASH = 5,
+            C_STAR = 6, C_QUOTE = 7, C_OTHER = 8, C_EOF = 9;
+    private static final int CLASSES = 10;
 
-    private final String keyword = "class|constructor|function|method|field|static|var|int|char|boolean|void|true|false|null|this|let|do|if|else|while|return";
-    private final String symbol = "\\{|}|\\(|\\)|\\[|]|\\.|,|;|\\+|-|\\*|/|&|\\||<|>|=|~";
-    private final String integerConstant = "^(0|[1-9]\\d*)$";
-    private final String stringConstant = "\".*?\"";
-    private final String identifier = "[a-zA-Z_][a-zA-Z0-9_]*";
+    // scanning states
+    private static final int S_START = 0, S_IDENT = 1, S_INT = 2, S_STRING = 3, S_SLASH = 4, S_LINE_COMMENT = 5,
+            S_BLOCK_COMMENT = 6, S_BLOCK_STAR = 7;
+
+    // accepting states; those marked with * consume the current character
+    private static final int A_IDENT = 8, A_INT = 9, A_STRING = 10 /* * */, A_SYMBOL = 11 /* * */, A_SLASH = 12,
+            A_END = 13, A_ERROR = 14;
+
+    private static final byte[] CLASS = new byte[128];
+    private static final byte[] TRANSITIONS = new byte[S_BLOCK_STAR * CLASSES + CLASSES];
+
+    private static final Keyword[] KEYWORDS = Keyword.values();
+    private static final String[] KEYWORD_TEXT = new String[KEYWORDS.length];
+    private static final char[][] KEYWORD_CHARS = new char[KEYWORDS.length][];
+    private static final byte[] KEYWORD_SLOTS = new byte[64];
+    private static final String[] SYMBOL_TEXT = new String[128];
+
+    static {
+        for (int c = 0; c < 128; c++) CLASS[c] = C_OTHER;
+        for (char c : " \t\r\f".toCharArray()) CLASS[c] = C_WS;
+        CLASS['\n'] = C_NEWLINE;
+        for (int c = 'a'; c <= 'z'; c++) CLASS[c] = C_LETTER;
+        for (int c = 'A'; c <= 'Z'; c++) CLASS[c] = C_LETTER;
+        CLASS['_'] = C_LETTER;
+        for (int c = '0'; c <= '9'; c++) CLASS[c] = C_DIGIT;
+        for (char c : "{}()[].,;+-*/&|<>=~".toCharArray()) {
+            CLASS[c] = C_SYMBOL;
+            SYMBOL_TEXT[c] = String.valueOf(c);
+        }
+        CLASS['/'] = C_SLASH;
+        CLASS['*'] = C_STAR;
+        CLASS['"'] = C_QUOTE;
+
+        // START: skip white space, begin a token, or emit a single character symbol
+        row(S_START, A_ERROR);
+        set(S_START, C_WS, S_START);
+        set(S_START, C_NEWLINE, S_START);
+        set(S_START, C_LETTER, S_IDENT);
+        set(S_START, C_DIGIT, S_INT);
+        set(S_START, C_SYMBOL, A_SYMBOL);
+        set(S_START, C_STAR, A_SYMBOL);
+        set(S_START, C_SLASH, S_SLASH);
+        set(S_START, C_QUOTE, S_STRING);
+        set(S_START, C_EOF, A_END);
+        // IDENT: letters, digits and underscores
+        row(S_IDENT, A_IDENT);
+        set(S_IDENT, C_LETTER, S_IDENT);
+        set(S_IDENT, C_DIGIT, S_IDENT);
+        // INT: decimal digits
+        row(S_INT, A_INT);
+        set(S_INT, C_DIGIT, S_INT);
+        // STRING: anything up to the closing double quote, on a single line
+        row(S_STRING, S_STRING);
+        set(S_STRING, C_QUOTE, A_STRING);
+        set(S_STRING, C_NEWLINE, A_ERROR);
+        set(S_STRING, C_EOF, A_ERROR);
+        // SLASH: the start of a comment, or the division symbol
+        row(S_SLASH, A_SLASH);
+        set(S_SLASH, C_SLASH, S_LINE_COMMENT);
+        set(S_SLASH, C_STAR, S_BLOCK_COMMENT);
+        // comments
+        row(S_LINE_COMMENT, S_LINE_COMMENT);
+        set(S_LINE_COMMENT, C_NEWLINE, S_START);
+        set(S_LINE_COMMENT, C_EOF, A_END);
+        row(S_BLOCK_COMMENT, S_BLOCK_COMMENT);
+        set(S_BLOCK_COMMENT, C_STAR, S_BLOCK_STAR);
+        set(S_BLOCK_COMMENT, C_EOF, A_ERROR);
+        row(S_BLOCK_STAR, S_BLOCK_COMMENT);
+        set(S_BLOCK_STAR, C_STAR, S_BLOCK_STAR);
+        set(S_BLOCK_STAR, C_SLASH, S_START);
+        set(S_BLOCK_STAR, C_EOF, A_ERROR);
+
+        for (Keyword k : KEYWORDS) {
+            KEYWORD_TEXT[k.ordinal()] = k.name().toLowerCase();
+            KEYWORD_CHARS[k.ordinal()] = KEYWORD_TEXT[k.ordinal()].toCharArray();
+            char[] cs = KEYWORD_CHARS[k.ordinal()];
+            int slot = keywordHash(cs, 0, cs.length);
+            while (KEYWORD_SLOTS[slot] != 0) slot = (slot + 1) & 63;
+            KEYWORD_SLOTS[slot] = (byte) (k.ordinal() + 1);
+        }
+    }
+
+    private static void row(int state, int next) {
+        for (int c = 0; c < CLASSES; c++) set(state, c, next);
+    }
+
+    private static void set(int state, int cls, int next) {
+        TRANSITIONS[state * CLASSES + cls] = (byte) next;
+    }
+
+    private static int keywordHash(char[] cs, int start, int length) {
+        return (cs[start] * 7 + cs[start + length - 1] * 3 + length) & 63;
+    }
+
+    // sets of keywords, as bit masks of keyword ordinals
+    static final int CLASS_VAR_DEC = bits(Keyword.STATIC, Keyword.FIELD);
+    static final int SUBROUTINE_DEC = bits(Keyword.CONSTRUCTOR, Keyword.FUNCTION, Keyword.METHOD);
+    static final int TYPE = bits(Keyword.INT, Keyword.CHAR, Keyword.BOOLEAN);
+    static final int RETURN_TYPE = TYPE | bits(Keyword.VOID);
+    static final int STATEMENT = bits(Keyword.LET, Keyword.IF, Keyword.WHILE, Keyword.DO, Keyword.RETURN);
+    static final int KEYWORD_CONSTANT = bits(Keyword.TRUE, Keyword.FALSE, Keyword.NULL, Keyword.THIS);
+
+    private static final boolean[] OPERATOR = new boolean[128];
+
+    static {
+        for (char c : "+-*/&|<>=".toCharArray()) OPERATOR[c] = true;
+    }
+
+    private static int bits(Keyword... keywords) {
+        int bits = 0;
+        for (Keyword keyword : keywords) bits |= 1 << keyword.ordinal();
+        return bits;
+    }
+
+    /**
+     * The number of tokens in a batch of {@link #lexAhead()}.
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * The number of batches of {@link #lexAhead()}, which bounds how far the lexer can run ahead of the parser.
+     */
+    static final int BATCHES = 8;
+
+    /**
+     * The size in bytes from which files are memory-mapped rather than read into the heap.
+     */
+    static final int MAP_THRESHOLD = 1 << 20;
+
+    /**
+     * The number of characters of the input that are decoded at a time.
+     */
+    static final int WINDOW = 1 << 16;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    /**
+     * A batch of tokens scanned by the lexer thread, in parallel arrays. The last batch ends with the end of the input,
+     * or with the error that the lexer ran into.
+     */
+    private static class Batch {
+        final byte[] types = new byte[BATCH_SIZE];    // TokenType ordinal, or -1 at the end of the input
+        final int[] values = new int[BATCH_SIZE];     // Keyword ordinal, symbol, or integer value
+        final String[] texts = new String[BATCH_SIZE];
+        final int[] lines = new int[BATCH_SIZE];
+        final int[] columns = new int[BATCH_SIZE];
+        int size;
+        boolean last;
+        IllegalStateException error;
+    }
+
+    private char[] buf;
+    private int pos;
+    private int limit;
+    private int tokenStart;    // or -1 if the current token has left the window, see tokenLine and tokenColumn
+
+    // the input that has not been decoded into the window yet, or null
+    private ByteBuffer in;
+    private CharsetDecoder decoder;
+    private byte[] scratch;             // the bytes being decoded, if the input is not on the heap
+
+    private long base;                  // the offset in the input of buf[0]
+    private int counted;                // the newlines before buf[counted] have been counted
+    private int countedLine = 1;        // the line of buf[counted]
+    private long countedLineStart;      // the offset in the input of the start of that line
+    private int tokenLine, tokenColumn;
+    private int commentLine, commentColumn;     // the start of the last comment that left the window
+
+    private TokenType type;
+    private Keyword keyword;
+    private char symbol;
+    private int intValue;
+    private String text;
+
+    private int tokens;
+
+    private BlockingQueue<Batch> full, free;
+    private Batch batch;
+    private int next;
 
     /**
      * Ignores all comments and white space in the input stream, and serializes it into Jack-language tokens.
      * The token types are specified according to the Jack grammar.
      *
-     * @param file
-     * @throws Exception
+     * @param  file the source file
+     * @throws IOException if the file cannot be read
+     */
+    JackTokenizer(File file) throws IOException {
+        this(read(file));
+    }
+
+    /**
+     * Creates a tokenizer for the given UTF-8 encoded source. Reads the buffer from its position to its limit, as the
+     * tokens are asked for.
+     *
+     * @param source the source
+     */
+    JackTokenizer(ByteBuffer source) {
+        // a UTF-8 sequence never decodes to more characters than it has bytes
+        buf = new char[Math.max(2, Math.min(source.remaining(), WINDOW))];
+        in = source;
+        decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        refill(0);
+    }
+
+    /**
+     * Creates a tokenizer for the source read from the given reader, up to the end of the stream. Does not close the
+     * reader.
+     *
+     * @param  source the source
+     * @throws IOException if the source cannot be read
+     */
+    JackTokenizer(Reader source) throws IOException {
+        this(read(source));
+    }
+
+    /**
+     * Creates a tokenizer for the given source.
+     *
+     * @param source the source
+     */
+    JackTokenizer(CharSequence source) {
+        this(source instanceof CharBuffer && ((CharBuffer) source).hasArray()
+                ? (CharBuffer) source : CharBuffer.wrap(source.toString().toCharArray()));
+    }
+
+    private JackTokenizer(CharBuffer cb) {
+        buf = cb.array();
+        pos = cb.arrayOffset() + cb.position();
+        limit = cb.arrayOffset() + cb.limit();
+        counted = pos;
+        base = -pos;
+    }
+
+    /**
+     * Creates a lexer that takes over the input of the given parser.
+     */
+    private JackTokenizer(JackTokenizer parser) {
+        buf = parser.buf;
+        pos = parser.pos;
+        limit = parser.limit;
+        tokenStart = parser.tokenStart;
+        in = parser.in;
+        decoder = parser.decoder;
+        base = parser.base;
+        counted = parser.counted;
+        countedLine = parser.countedLine;
+        countedLineStart = parser.countedLineStart;
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath())) {
+            long size = ch.size();
+            // the mapping stays valid after the channel is closed
+            if (size >= MAP_THRESHOLD) return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining()) {
+                if (ch.read(bytes) < 0) break;
+            }
+            return bytes.flip();
+        }
+    }
+
+    /**
+     * Moves the window while scanning in the given state, keeping the token being scanned but not a comment. The line
+     * and column of a comment are kept instead, for the error if it is not closed.
+     *
+     * @param  state the scanning state
+     * @param  start the start of the token or comment being scanned
+     * @return       the number of characters that the window moved by
+     */
+    private int refill(int state, int start) {
+        if (state < S_LINE_COMMENT) return refill(start);
+        if (start >= 0) {
+            countLines(start);
+            commentLine = countedLine;
+            commentColumn = (int) (base + start - countedLineStart + 1);
+        }
+        return refill(pos);
+    }
+
+    /**
+     * Moves the window to start at <code>buf[keep]</code>, and decodes as much of the rest of the input as fits into
+     * it. The window grows if the characters kept fill most of it, i.e. for a token longer than the window.
+     *
+     * @return the number of characters that the window moved by
      */
-    JackTokenizer(File file) throws Exception {
-        sc = new Scanner(file).useDelimiter("");
+    private int refill(int keep) {
+        if (tokenStart >= 0 && tokenStart < keep) {
+            tokenLine = line();
+            tokenColumn = column();
+            tokenStart = -1;
+        } else if (tokenStart >= 0) {
+            tokenStart -= keep;
+        }
+        countLines(keep);
+        System.arraycopy(buf, keep, buf, 0, limit - keep);
+        limit -= keep;
+        pos -= keep;
+        counted -= keep;
+        base += keep;
+        if (buf.length - limit < 2) buf = Arrays.copyOf(buf, buf.length * 2);
+
+        // ASCII is copied as is, up to the first byte of a longer UTF-8 sequence
+        int n = limit;
+        int p = in.position();
+        int room = Math.min(buf.length - n, in.remaining());
+        byte[] bytes = in.hasArray() ? in.array() : scratch(room);
+        int offset = in.hasArray() ? in.arrayOffset() + p : 0;
+        if (!in.hasArray()) in.get(p, bytes, 0, room);
+        int i = 0;
+        while (i < room && bytes[offset + i] >= 0) {
+            buf[n + i] = (char) bytes[offset + i];
+            i++;
+        }
+        n += i;
+        p += i;
+        in.position(p);
+        if (n < buf.length && in.hasRemaining()) {
+            CharBuffer out = CharBuffer.wrap(buf, n, buf.length - n);
+            decoder.decode(in, out, true);
+            n = out.position();
+        }
+        limit = n;
+        if (!in.hasRemaining()) in = null;
+        return keep;
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch == null || scratch.length < length) scratch = new byte[buf.length];
+        return scratch;
+    }
+
+    private void countLines(int to) {
+        for (int i = counted; i < to; i++) {
+            if (buf[i] == '\n') {
+                countedLine++;
+                countedLineStart = base + i + 1;
+            }
+        }
+        counted = Math.max(counted, to);
+    }
+
+    private static CharBuffer read(Reader reader) throws IOException {
+        char[] chars = new char[8192];
+        int length = 0;
+        for (int n; (n = reader.read(chars, length, chars.length - length)) >= 0; ) {
+            length += n;
+            if (length == chars.length) chars = Arrays.copyOf(chars, chars.length * 2);
+        }
+        return CharBuffer.wrap(chars, 0, length);
     }
 
     /**
@@ -37,7 +405,28 @@ class JackTokenizer {
      * @return boolean
      */
     boolean hasMoreTokens() {
-        return sc.hasNext();
+        if (full != null) return fill() && (next == batch.size || batch.types[next] >= 0);
+        // run the automaton over white space and comments only, and stop in front of the first token character
+        int state = S_START;
+        int mark = pos;
+        while (true) {
+            int next = TRANSITIONS[state * CLASSES + classAt(pos)];
+            if (next >= A_IDENT && pos == limit && in != null) {
+                // the end of the window: every state accepts or fails on the end of the input
+                mark -= refill(state, mark);
+                continue;
+            }
+            if (next == A_END) return false;
+            // a comment that is not closed, which advance could not scan again once it has left the window
+            if (next == A_ERROR && state >= S_LINE_COMMENT) accept(next, mark);
+            if (next >= A_IDENT || (next != S_START && next < S_SLASH)) {
+                pos = mark;
+                return true;
+            }
+            pos++;
+            if (next == S_START) mark = pos;
+            state = next;
+        }
     }
 
     /**
@@ -46,76 +435,260 @@ class JackTokenizer {
      * Initially there is no current token.
      */
     void advance() {
-        // prepare variables
-        token = "";
-        String potentialToken = "";
-
-        // previous token construction finished at a symbol, so make that the current token and stop
-         if (Pattern.matches(symbol, String.valueOf(nextChar))) {
-            token = String.valueOf(nextChar);
-            nextChar = 0;
+        if (full != null) {
+            take();
             return;
         }
+        int state = S_START;
+        int start = pos;
+        while (true) {
+            int next = TRANSITIONS[state * CLASSES + classAt(pos)];
+            if (next >= A_IDENT) {
+                if (pos == limit && in != null) {
+                    // the end of the window; only the token being scanned is kept, not a comment
+                    start -= refill(state, start);
+                    continue;
+                }
+                accept(next, start);
+                return;
+            }
+            pos++;
+            if (next == S_START) start = pos;
+            state = next;
+        }
+    }
 
-        // take the next character from the input
-        nextChar = sc.next().charAt(0);
-
-        // the next character is a symbol, which is a token
-        if (nextChar == '(' || nextChar == ')' || nextChar == '[' || nextChar == ']' || nextChar == ',' || nextChar == ';' || nextChar == '.' || nextChar == '-') {
-            token = String.valueOf(nextChar);
-            nextChar = 0;
+    /**
+     * Skips the block that starts with the current token, which must be "{", up to and including the matching "}",
+     * and advances to get the next token. The tokens of the block are only scanned for braces, without making any of
+     * them the current token, which is much faster than advancing over them.
+     */
+    void skipBlock() {
+        if (!isSymbol('{')) throw error("'{'");
+        if (full != null) {
+            advance();
+            for (int depth = 1; depth > 0; advance()) {
+                if (type == null) throw error("'}'");
+                if (isSymbol('{')) depth++;
+                if (isSymbol('}')) depth--;
+            }
             return;
         }
-
-        // skip over any kind of whitespace
-        while (Character.isWhitespace(nextChar)) {
-            if (!sc.hasNext()) {
-                return;
+        int depth = 1;
+        int state = S_START;
+        int start = pos;
+        while (depth > 0) {
+            int next = TRANSITIONS[state * CLASSES + classAt(pos)];
+            if (next < A_IDENT) {
+                pos++;
+                if (next == S_START) start = pos;
+                state = next;
+                continue;
+            }
+            if (pos == limit && in != null) {
+                start -= refill(state, start);
+                continue;
             }
-            nextChar = sc.next().charAt(0);
+            if (next == A_SYMBOL) {
+                if (buf[pos] == '{') depth++;
+                if (buf[pos] == '}') depth--;
+                pos++;
+            } else if (next == A_STRING) {
+                pos++;
+            } else if (next >= A_END) {
+                accept(next, start);
+                throw error("'}'");
+            }
+            state = S_START;
+            start = pos;
         }
+        advance();
+    }
 
-        boolean stringConstant = false;
-
-        // build up a potential token
-        while (sc.hasNext() && (stringConstant || !Character.isWhitespace(nextChar))) {
+    /**
+     * Starts scanning the rest of the input on a new lexer thread. From then on, {@link #advance()} takes the tokens
+     * that the lexer thread has scanned, and blocks until the next batch of tokens is ready. Errors in the input are
+     * thrown by {@link #advance()} when the parser reaches them, as without a lexer thread.
+     *
+     * @return the lexer thread, which the caller should interrupt if it stops before the end of the input
+     */
+    Thread lexAhead() {
+        full = new ArrayBlockingQueue<>(BATCHES);
+        free = new ArrayBlockingQueue<>(BATCHES);
+        for (int i = 0; i < BATCHES; i++) free.add(new Batch());
+        if (tokenStart >= 0) {
+            tokenLine = line();
+            tokenColumn = column();
+            tokenStart = -1;
+        }
+        JackTokenizer lexer = new JackTokenizer(this);
+        buf = null;
+        in = null;
+        Thread thread = new Thread(() -> lexer.produce(full, free), "lexer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
 
-            if (nextChar == '"') {
-                stringConstant = !stringConstant;
+    private void produce(BlockingQueue<Batch> full, BlockingQueue<Batch> free) {
+        try {
+            Batch b = free.take();
+            while (true) {
+                try {
+                    advance();
+                } catch (IllegalStateException e) {
+                    b.error = e;
+                    b.last = true;
+                    full.put(b);
+                    return;
+                }
+                int i = b.size++;
+                b.types[i] = (byte) (type == null ? -1 : type.ordinal());
+                b.values[i] = type == TokenType.KEYWORD ? keyword.ordinal()
+                        : type == TokenType.SYMBOL ? symbol : intValue;
+                b.texts[i] = text;
+                b.lines[i] = line();
+                b.columns[i] = column();
+                if (type == null) {
+                    b.last = true;
+                    full.put(b);
+                    return;
+                }
+                if (b.size == BATCH_SIZE) {
+                    full.put(b);
+                    b = free.take();
+                }
             }
+        } catch (InterruptedException e) {
+            // the parser has stopped
+        }
+    }
 
-            if (nextChar == '-' || nextChar == '(' || nextChar == '~') {
-                token = String.valueOf(nextChar);
-                nextChar = 0;
-                return;
+    /**
+     * Waits until the batch at hand has a token or an error left, unless the end of the input has been reached.
+     */
+    private boolean fill() {
+        while (batch == null || next == batch.size) {
+            if (batch != null) {
+                if (batch.error != null) return true;
+                if (batch.last) return false;
+                Arrays.fill(batch.texts, null);
+                batch.size = 0;
+                free.add(batch);
             }
-
-            potentialToken += nextChar;
-            nextChar = sc.next().charAt(0);
-
-            if (!stringConstant && (nextChar == '(' || nextChar == ')' || nextChar == '[' || nextChar == ']' || nextChar == ',' || nextChar == ';' || nextChar == '.')) {
-                token = potentialToken;
-                return;
+            try {
+                batch = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the lexer");
             }
+            next = 0;
         }
+        return true;
+    }
+
+    private void take() {
+        if (!fill()) return;
+        if (next == batch.size) throw batch.error;
+        int i = next++;
+        int value = batch.values[i];
+        type = batch.types[i] < 0 ? null : TOKEN_TYPES[batch.types[i]];
+        keyword = type == TokenType.KEYWORD ? KEYWORDS[value] : null;
+        symbol = (char) value;
+        intValue = value;
+        text = batch.texts[i];
+        tokenLine = batch.lines[i];
+        tokenColumn = batch.columns[i];
+        tokens++;
+    }
 
-        // ignore the token if it's a comment
-        if (potentialToken.startsWith("//") || potentialToken.startsWith("/**")) {
-            if (potentialToken.startsWith("//")) {
-                sc.nextLine();
-            } else if (potentialToken.startsWith("/**")) {
-                String nextLine = sc.nextLine();
-                while (!nextLine.contains("*/")) {
-                    nextLine = sc.nextLine();
+    private int classAt(int i) {
+        if (i >= limit) return C_EOF;
+        char c = buf[i];
+        return c < 128 ? CLASS[c] : C_OTHER;
+    }
+
+    private void accept(int state, int start) {
+        tokenStart = start;
+        tokens++;
+        switch (state) {
+            case A_IDENT:
+                int k = keywordAt(start, pos - start);
+                if (k >= 0) {
+                    type = TokenType.KEYWORD;
+                    keyword = KEYWORDS[k];
+                    text = KEYWORD_TEXT[k];
+                } else {
+                    type = TokenType.IDENTIFIER;
+                    keyword = null;
+                    text = new String(buf, start, pos - start);
                 }
-            }
-            if (sc.hasNext()) {
-                advance();
-                return;
-            }
+                break;
+            case A_INT:
+                int value = 0;
+                for (int i = start; i < pos; i++) {
+                    value = value * 10 + (buf[i] - '0');
+                    if (value > 32767) {
+                        throw new IllegalStateException("Integer constant out of range at line " + line() + ", column "
+                                + column());
+                    }
+                }
+                type = TokenType.INT_CONST;
+                intValue = value;
+                text = new String(buf, start, pos - start);
+                break;
+            case A_STRING:
+                pos++;
+                type = TokenType.STRING_CONST;
+                text = new String(buf, start + 1, pos - start - 2);
+                break;
+            case A_SYMBOL:
+                symbol = buf[pos++];
+                type = TokenType.SYMBOL;
+                text = SYMBOL_TEXT[symbol];
+                break;
+            case A_SLASH:
+                symbol = '/';
+                type = TokenType.SYMBOL;
+                text = SYMBOL_TEXT['/'];
+                break;
+            case A_END:
+                type = null;
+                text = "";
+                break;
+            default:
+                if (pos == limit && (start < 0 || buf[start] == '/')) {
+                    if (start < 0) {
+                        tokenStart = -1;
+                        tokenLine = commentLine;
+                        tokenColumn = commentColumn;
+                    }
+                    throw new IllegalStateException("Unterminated comment at line " + line() + ", column " + column());
+                }
+                if (pos < limit && buf[pos] != '\n') tokenStart = pos;
+                throw new IllegalStateException((pos < limit && buf[pos] != '\n'
+                        ? "Illegal character '" + buf[pos] + "'"
+                        : "Unterminated string constant") + " at line " + line() + ", column " + column());
         }
+    }
+
+    private int keywordAt(int start, int length) {
+        if (length < 2 || length > 11 || buf[start] < 'b' || buf[start] > 'w') return -1;
+        int slot = keywordHash(buf, start, length);
+        while (KEYWORD_SLOTS[slot] != 0) {
+            int k = KEYWORD_SLOTS[slot] - 1;
+            char[] cs = KEYWORD_CHARS[k];
+            if (cs.length == length && regionMatches(cs, start)) return k;
+            slot = (slot + 1) & 63;
+        }
+        return -1;
+    }
 
-        token = potentialToken;
+    private boolean regionMatches(char[] cs, int start) {
+        for (int i = 0; i < cs.length; i++) {
+            if (buf[start + i] != cs[i]) return false;
+        }
+        return true;
     }
 
     /**
@@ -125,12 +698,7 @@ class JackTokenizer {
      * @see     TokenType
      */
     TokenType tokenType() {
-        if (Pattern.matches(keyword, token)) return TokenType.KEYWORD;
-        if (Pattern.matches(symbol, token)) return TokenType.SYMBOL;
-        if (Pattern.matches(integerConstant, token)) return TokenType.INT_CONST;
-        if (Pattern.matches(stringConstant, token)) return TokenType.STRING_CONST;
-        if (Pattern.matches(identifier, token)) return TokenType.IDENTIFIER;
-        return null;
+        return type;
     }
 
     /**
@@ -141,30 +709,7 @@ class JackTokenizer {
      * @see     Keyword
      */
     Keyword keyWord() {
-        switch (token) {
-            case "class": return Keyword.CLASS;
-            case "method": return Keyword.METHOD;
-            case "function": return Keyword.FUNCTION;
-            case "constructor": return Keyword.CONSTRUCTOR;
-            case "int": return Keyword.INT;
-            case "boolean": return Keyword.BOOLEAN;
-            case "char": return Keyword.CHAR;
-            case "void": return Keyword.VOID;
-            case "var": return Keyword.VAR;
-            case "static": return Keyword.STATIC;
-            case "field": return Keyword.FIELD;
-            case "let": return Keyword.LET;
-            case "do": return Keyword.DO;
-            case "if": return Keyword.IF;
-            case "else": return Keyword.ELSE;
-            case "while": return Keyword.WHILE;
-            case "return": return Keyword.RETURN;
-            case "true": return Keyword.TRUE;
-            case "false": return Keyword.FALSE;
-            case "null": return Keyword.NULL;
-            case "this": return Keyword.THIS;
-        }
-        return null;
+        return type == TokenType.KEYWORD ? keyword : null;
     }
 
     /**
@@ -174,7 +719,7 @@ class JackTokenizer {
      * @return  the character which is the current token
      */
     char symbol() {
-        return token.charAt(0);
+        return type == TokenType.SYMBOL ? symbol : 0;
     }
 
     /**
@@ -184,7 +729,7 @@ class JackTokenizer {
      * @return  the identifier which is the current token
      */
     String identifier() {
-        return token;
+        return text;
     }
 
     /**
@@ -194,7 +739,7 @@ class JackTokenizer {
      * @return  the integer value of the current token
      */
     int intVal() {
-        return Integer.parseInt(token);
+        return intValue;
     }
 
     /**
@@ -204,6 +749,156 @@ class JackTokenizer {
      * @return  the string value of the current token, without the two enclosing double quotes
      */
     String stringVal() {
-        return token.substring(1, token.length() - 1);
+        return text;
+    }
+
+    /**
+     * Returns the number of tokens read so far, including the end of the input.
+     *
+     * @return  the number of tokens
+     */
+    int tokenCount() {
+        return tokens;
+    }
+
+    /**
+     * Returns the line of the current token, counting from 1.
+     *
+     * @return  the line of the current token
+     */
+    int line() {
+        if (tokenStart < 0) return tokenLine;
+        countLines(tokenStart);
+        return countedLine;
+    }
+
+    /**
+     * Returns the column of the first character of the current token, counting from 1.
+     *
+     * @return  the column of the current token
+     */
+    int column() {
+        if (tokenStart < 0) return tokenColumn;
+        countLines(tokenStart);
+        return (int) (base + tokenStart - countedLineStart + 1);
+    }
+
+    /**
+     * Returns whether the current token is one of the given keywords.
+     *
+     * @param  keywords a bit mask of keyword ordinals
+     * @return          true if the current token is one of the keywords
+     */
+    boolean isKeyword(int keywords) {
+        return type == TokenType.KEYWORD && (keywords & 1 << keyword.ordinal()) != 0;
+    }
+
+    /**
+     * Returns whether the current token is the given symbol.
+     *
+     * @param  symbol the symbol
+     * @return        true if the current token is the symbol
+     */
+    boolean isSymbol(char symbol) {
+        return type == TokenType.SYMBOL && this.symbol == symbol;
+    }
+
+    /**
+     * Returns whether the current token is a binary operator: one of <code>+ - * / &amp; | &lt; &gt; =</code>.
+     *
+     * @return true if the current token is a binary operator
+     */
+    boolean isOperator() {
+        return type == TokenType.SYMBOL && OPERATOR[symbol];
+    }
+
+    /**
+     * Handles the current token, which must be the given keyword, and advances to get the next token.
+     *
+     * @param keyword the expected keyword
+     */
+    void expect(Keyword keyword) {
+        expect(1 << keyword.ordinal());
+    }
+
+    /**
+     * Handles the current token, which must be one of the given keywords, and advances to get the next token.
+     *
+     * @param  keywords a bit mask of the ordinals of the expected keywords
+     * @return          the keyword
+     */
+    Keyword expect(int keywords) {
+        if (!isKeyword(keywords)) throw error(describe(keywords));
+        Keyword keyword = this.keyword;
+        advance();
+        return keyword;
+    }
+
+    /**
+     * Handles the current token, which must be the given symbol, and advances to get the next token.
+     *
+     * @param symbol the expected symbol
+     */
+    void expect(char symbol) {
+        if (!isSymbol(symbol)) throw error("'" + symbol + "'");
+        advance();
+    }
+
+    /**
+     * Handles the current token, which must be an identifier, and advances to get the next token.
+     *
+     * @return the identifier
+     */
+    String expectIdentifier() {
+        if (type != TokenType.IDENTIFIER) throw error("an identifier");
+        String identifier = text;
+        advance();
+        return identifier;
+    }
+
+    /**
+     * Handles the current token, which must be one of the given type keywords or a class name, and advances to get
+     * the next token.
+     *
+     * @param  keywords a bit mask of the ordinals of the type keywords
+     * @return          the type
+     */
+    String expectType(int keywords) {
+        if (!isKeyword(keywords) && type != TokenType.IDENTIFIER) {
+            throw error(describe(keywords) + " or a class name");
+        }
+        String type = text;
+        advance();
+        return type;
+    }
+
+    /**
+     * Returns a syntax error for the current token.
+     *
+     * @param  expected what was expected instead of the current token
+     * @return          the error
+     */
+    IllegalStateException error(String expected) {
+        String found;
+        if (type == null) {
+            found = "end of file";
+        } else if (type == TokenType.STRING_CONST) {
+            found = "\"" + text + "\"";
+        } else {
+            found = "'" + text + "'";
+        }
+        return new IllegalStateException("Expected " + expected + " but found " + found + " at line " + line()
+                + ", column " + column());
+    }
+
+    private static String describe(int keywords) {
+        StringBuilder sb = new StringBuilder();
+        for (Keyword keyword : KEYWORDS) {
+            if ((keywords & 1 << keyword.ordinal()) != 0) {
+                if (sb.length() > 0) sb.append(" or ");
+                sb.append("'").append(keyword.toString().toLowerCase()).append("'");
+            }
+        }
+        return sb.toString();
     }
 }
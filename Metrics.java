@@ -0,0 +1,246 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * This module records where the compilation of a file spends its time: the wall time of each {@link #PHASES phase},
+ * the number of tokens read, the number of instructions emitted, the number of bytes written, and the number of
+ * bytes allocated by the compiling thread. Every phase is also recorded as a {@link PhaseEvent} and every file as a
+ * {@link FileEvent} for the JDK Flight Recorder, e.g. with <code>java -XX:StartFlightRecording ... JackCompiler</code>;
+ * the events cost next to nothing if no recording is running.
+ * <p>
+ * Lexing is interleaved with parsing and code generation, which pull one token at a time, so it is part of the
+ * <code>compile</code> phase; with <code>--pipeline</code>, all stages after reading run at once and are recorded as
+ * <code>compile</code> too. The allocation is that of the compiling thread only.
+ * <p>
+ * With <code>--stats</code>, {@link JackCompiler#report} prints a {@link #summary} of a build, and with
+ * <code>--stats-json</code> <i>file</i> it writes the metrics of every file as {@link #json JSON}.
+ *
+ * @author Maarten Derks
+ */
+class Metrics {
+
+    /**
+     * The phases: reading and decoding the source, compiling it (lexing, parsing and code generation), running the
+     * peephole optimizer, linking the classes of a whole-program or inlining build, and writing the output.
+     */
+    static final String[] PHASES = {"read", "compile", "optimize", "link", "write"};
+
+    static final int READ = 0, COMPILE = 1, OPTIMIZE = 2, LINK = 3, WRITE = 4;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * A phase of the compilation of a file.
+     */
+    @Name("jackc.Phase")
+    @Label("Compile Phase")
+    @Category("Jack Compiler")
+    static class PhaseEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Phase")
+        String phase;
+    }
+
+    /**
+     * The compilation of a file.
+     */
+    @Name("jackc.File")
+    @Label("Compile File")
+    @Category("Jack Compiler")
+    static class FileEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Instructions")
+        @Description("VM instructions emitted")
+        int instructions;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+
+        @Label("Bytes Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    final long[] nanos = new long[PHASES.length];
+    int tokens;
+    int instructions;
+    long bytes;
+    long allocated;
+
+    private final String file;
+    private FileEvent fileEvent;
+    private PhaseEvent phaseEvent;
+    private int phase = -1;
+    private long start, allocatedStart;
+
+    /**
+     * Creates new metrics for the given file.
+     *
+     * @param file the source file
+     */
+    Metrics(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts the compilation of the file on the current thread.
+     */
+    void beginFile() {
+        fileEvent = new FileEvent();
+        fileEvent.begin();
+        allocatedStart = THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Ends the compilation of the file on the current thread, and the current phase.
+     */
+    void endFile() {
+        end();
+        allocated += THREADS.getCurrentThreadAllocatedBytes() - allocatedStart;
+        fileEvent.end();
+        if (fileEvent.shouldCommit()) {
+            fileEvent.file = file;
+            fileEvent.tokens = tokens;
+            fileEvent.instructions = instructions;
+            fileEvent.bytes = bytes;
+            fileEvent.allocated = allocated;
+            fileEvent.commit();
+        }
+    }
+
+    /**
+     * Ends the current phase, if any, and starts the given phase.
+     *
+     * @param phase the phase, one of {@link #READ} ... {@link #WRITE}
+     */
+    void begin(int phase) {
+        end();
+        this.phase = phase;
+        phaseEvent = new PhaseEvent();
+        phaseEvent.begin();
+        start = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase, if any.
+     */
+    void end() {
+        if (phase < 0) return;
+        nanos[phase] += System.nanoTime() - start;
+        phaseEvent.end();
+        if (phaseEvent.shouldCommit()) {
+            phaseEvent.file = file;
+            phaseEvent.phase = PHASES[phase];
+            phaseEvent.commit();
+        }
+        phase = -1;
+    }
+
+    /**
+     * Returns a summary of the metrics of the compiled files of a build: the totals, and the time of each phase.
+     *
+     * @param  results the results of the build
+     * @return         the summary
+     */
+    static String summary(List<JackCompiler.Result> results) {
+        Metrics total = total(results);
+        long nanos = 0;
+        for (long n : total.nanos) nanos += n;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%d files, %,d tokens, %,d instructions, %,d bytes written, "
+                + "%,d bytes allocated%n", count(results), total.tokens, total.instructions, total.bytes,
+                total.allocated));
+        for (int i = 0; i < PHASES.length; i++) {
+            sb.append(String.format(Locale.ROOT, "  %-9s %,12.3f ms %5.1f%%%n", PHASES[i], total.nanos[i] / 1e6,
+                    nanos == 0 ? 0 : 100.0 * total.nanos[i] / nanos));
+        }
+        sb.append(String.format(Locale.ROOT, "  %-9s %,12.3f ms, %,.0f tokens/s%n", "total", nanos / 1e6,
+                nanos == 0 ? 0 : total.tokens * 1e9 / nanos));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the metrics of the compiled files of a build as a JSON object, with the compiler version, the totals,
+     * and an array with the metrics of each file.
+     *
+     * @param  results the results of the build
+     * @return         the JSON text
+     */
+    static String json(List<JackCompiler.Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"version\": \"").append(JackCompiler.VERSION).append("\",\n  \"total\": ");
+        total(results).json(sb);
+        sb.append(",\n  \"files\": [");
+        String separator = "\n    ";
+        for (JackCompiler.Result result : results) {
+            if (result.metrics == null || result.error != null || result.upToDate) continue;
+            sb.append(separator);
+            separator = ",\n    ";
+            result.metrics.json(sb);
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    private void json(StringBuilder sb) {
+        sb.append('{');
+        if (file != null) {
+            sb.append("\"file\": \"");
+            for (char c : file.toCharArray()) {
+                if (c == '"' || c == '\\') sb.append('\\');
+                if (c < ' ') {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append("\", ");
+        }
+        sb.append("\"tokens\": ").append(tokens).append(", \"instructions\": ").append(instructions)
+                .append(", \"bytes\": ").append(bytes).append(", \"allocated\": ").append(allocated)
+                .append(", \"nanos\": {");
+        for (int i = 0; i < PHASES.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append('"').append(PHASES[i]).append("\": ").append(nanos[i]);
+        }
+        sb.append("}}");
+    }
+
+    private static Metrics total(List<JackCompiler.Result> results) {
+        Metrics total = new Metrics(null);
+        for (JackCompiler.Result result : results) {
+            Metrics m = result.metrics;
+            if (m == null || result.error != null || result.upToDate) continue;
+            for (int i = 0; i < PHASES.length; i++) total.nanos[i] += m.nanos[i];
+            total.tokens += m.tokens;
+            total.instructions += m.instructions;
+            total.bytes += m.bytes;
+            total.allocated += m.allocated;
+        }
+        return total;
+    }
+
+    private static int count(List<JackCompiler.Result> results) {
+        int n = 0;
+        for (JackCompiler.Result result : results) {
+            if (result.metrics != null && result.error == null && !result.upToDate) n++;
+        }
+        return n;
+    }
+}
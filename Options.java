@@ -0,0 +1,276 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This module holds the command-line options of the compiler.
+ * <p>
+ * <b>Usage:</b> <code>JackCompiler [-j</code> <i>n</i><code>] [-d</code> <i>dir</i><code>] [-O [--mutable-strings]]
+ * [--ast] [--pipeline] [--incremental] [--whole-program [--root</code> <i>Xxx.yyy</i><code>]...]
+ * [--inline [--inline-limit</code> <i>n</i><code>]] [--format vm|vmb|asm] [--bundle</code> <i>file</i><code>] [--stats]
+ * [--stats-json</code> <i>file</i><code>] [--watch]</code> <i>source</i> ...
+ *
+ * @author Maarten Derks
+ */
+class Options {
+
+    /**
+     * The <code>.jack</code> files or folders to compile. A single <code>-</code> compiles standard input to standard
+     * output.
+     */
+    final List<String> sources = new ArrayList<>();
+
+    /**
+     * The folder to write the output files to (<code>-d</code> <i>dir</i>), or <code>null</code> to write each
+     * output file next to its source file.
+     */
+    String outputDir;
+
+    /**
+     * The number of files to compile in parallel (<code>-j</code> <i>n</i>). Defaults to the number of available
+     * processors; <code>-j 1</code> compiles the files one after another on the calling thread.
+     */
+    int jobs = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Skip files that have not changed since the previous build (<code>--incremental</code>). See
+     * {@link BuildManifest}.
+     */
+    boolean incremental;
+
+    /**
+     * Compile all sources as one program (<code>--whole-program</code>), and leave out the functions that cannot be
+     * reached from the {@link #roots}. See {@link CallGraph}. Cannot be combined with {@link #incremental} or
+     * {@link #pipeline}, which compile each file on its own.
+     */
+    boolean wholeProgram;
+
+    /**
+     * The functions where the program starts, for {@link #wholeProgram}: <code>Sys.init</code>, which the VM calls
+     * first, <code>Main.main</code>, and the functions given with <code>--root</code> <i>Xxx.yyy</i>.
+     */
+    final List<String> roots = new ArrayList<>(List.of("Sys.init", "Main.main"));
+
+    /**
+     * Replace the calls of trivial functions, such as getters and setters, by their bodies, across all sources
+     * (<code>--inline</code>). See {@link Inliner}. Like {@link #wholeProgram}, cannot be combined with
+     * {@link #incremental} or {@link #pipeline}.
+     */
+    boolean inline;
+
+    /**
+     * The maximum number of instructions that replace an inlined call (<code>--inline-limit</code> <i>n</i>).
+     */
+    int inlineLimit = 5;
+
+    /**
+     * The output format (<code>--format</code>): <code>vm</code> for VM text, <code>vmb</code> for the binary
+     * format of {@link VMCode}, or <code>asm</code> for a single Hack assembly program of all classes (see
+     * {@link AsmWriter} and {@link JackCompiler#programFile}). Also the extension of the output files.
+     */
+    String format = "vm";
+
+    /**
+     * The file to write all classes into (<code>--bundle</code> <i>file</i>), in the {@link #format} of the options,
+     * or <code>null</code> to write one output file per class. See {@link Bundle}. With the <code>asm</code> format, the
+     * file to write the program to. Cannot be combined with {@link #incremental}, which keeps track of the output
+     * file of each class.
+     */
+    String bundle;
+
+    /**
+     * Run the {@link PeepholeOptimizer} over the generated code (<code>-O</code>), and report the instruction count of
+     * each class before and after.
+     */
+    boolean optimize;
+
+    /**
+     * Do not pool string constants with {@link #optimize} (<code>--mutable-strings</code>), but build a new string
+     * each time a string constant is evaluated, for programs that modify the strings of string constants.
+     */
+    boolean mutableStrings;
+
+    /**
+     * Parse each class into a {@link SyntaxTree} and generate its code in a separate pass (<code>--ast</code>),
+     * rather than in the single pass of the {@link CompilationEngine}. The generated code is the same.
+     */
+    boolean ast;
+
+    /**
+     * Lex, compile, and write each file on three threads of its own (<code>--pipeline</code>), see {@link Pipeline}.
+     * Shortens the compilation of large classes; the generated code is the same.
+     */
+    boolean pipeline;
+
+    /**
+     * Print the totals of the {@link Metrics} of the compiled files and the time spent in each phase
+     * (<code>--stats</code>).
+     */
+    boolean stats;
+
+    /**
+     * The file to write the {@link Metrics} of each compiled file to as JSON (<code>--stats-json</code> <i>file</i>),
+     * or <code>null</code>.
+     */
+    String statsJson;
+
+    /**
+     * Keep running after the build, and recompile the sources that change (<code>--watch</code>). See
+     * {@link Watcher}.
+     */
+    boolean watch;
+
+    /**
+     * Parses the given command-line arguments.
+     *
+     * @param  args the command-line arguments
+     * @return      the options
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-j":
+                    options.jobs = jobs(args[++i]);
+                    break;
+                case "-d":
+                    options.outputDir = args[++i];
+                    break;
+                case "-O":
+                    options.optimize = true;
+                    break;
+                case "--mutable-strings":
+                    options.mutableStrings = true;
+                    break;
+                case "--ast":
+                    options.ast = true;
+                    break;
+                case "--pipeline":
+                    options.pipeline = true;
+                    break;
+                case "--incremental":
+                    options.incremental = true;
+                    break;
+                case "--whole-program":
+                    options.wholeProgram = true;
+                    break;
+                case "--root":
+                    options.roots.add(args[++i]);
+                    break;
+                case "--inline":
+                    options.inline = true;
+                    break;
+                case "--inline-limit":
+                    options.inlineLimit = Integer.parseInt(args[++i]);
+                    break;
+                case "--bundle":
+                    options.bundle = args[++i];
+                    break;
+                case "--stats":
+                    options.stats = true;
+                    break;
+                case "--stats-json":
+                    options.statsJson = args[++i];
+                    break;
+                case "--watch":
+                    options.watch = true;
+                    break;
+                case "--format":
+                    options.format = args[++i];
+                    if (!options.format.equals("vm") && !options.format.equals("vmb")
+                            && !options.format.equals("asm")) {
+                        throw new IllegalArgumentException("--format expects vm, vmb or asm");
+                    }
+                    break;
+                default:
+                    if (args[i].startsWith("-j")) {
+                        options.jobs = jobs(args[i].substring(2));
+                    } else if (args[i].startsWith("-") && !args[i].equals("-")) {
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                    } else {
+                        options.sources.add(args[i]);
+                    }
+            }
+        }
+        if (options.sources.isEmpty()) throw new IllegalArgumentException("No source file or folder given");
+        if (options.linked() && (options.incremental || options.pipeline)) {
+            String option = options.wholeProgram ? "--whole-program" : options.inline ? "--inline" : "--format asm";
+            throw new IllegalArgumentException(option + " cannot be combined with --incremental or --pipeline");
+        }
+        if (options.bundle != null && options.incremental) {
+            throw new IllegalArgumentException("--bundle cannot be combined with --incremental");
+        }
+        if (options.watch && options.sources.contains("-")) {
+            throw new IllegalArgumentException("--watch cannot watch standard input");
+        }
+        return options;
+    }
+
+    /**
+     * Returns the command-line arguments for these options, with all file names made absolute.
+     *
+     * @return the command-line arguments
+     */
+    List<String> toArgs() {
+        List<String> args = new ArrayList<>();
+        args.add("-j");
+        args.add(String.valueOf(jobs));
+        if (outputDir != null) {
+            args.add("-d");
+            args.add(new File(outputDir).getAbsolutePath());
+        }
+        if (optimize) args.add("-O");
+        if (mutableStrings) args.add("--mutable-strings");
+        if (ast) args.add("--ast");
+        if (pipeline) args.add("--pipeline");
+        if (incremental) args.add("--incremental");
+        if (wholeProgram) args.add("--whole-program");
+        for (String root : roots.subList(2, roots.size())) {
+            args.add("--root");
+            args.add(root);
+        }
+        if (inline) {
+            args.add("--inline");
+            args.add("--inline-limit");
+            args.add(String.valueOf(inlineLimit));
+        }
+        if (stats) args.add("--stats");
+        if (statsJson != null) {
+            args.add("--stats-json");
+            args.add(new File(statsJson).getAbsolutePath());
+        }
+        args.add("--format");
+        args.add(format);
+        if (bundle != null) {
+            args.add("--bundle");
+            args.add(new File(bundle).getAbsolutePath());
+        }
+        for (String source : sources) args.add(new File(source).getAbsolutePath());
+        return args;
+    }
+
+    /**
+     * Returns whether the classes are only written once all of them have been compiled: for {@link #wholeProgram},
+     * {@link #inline}, and the Hack assembly {@link #format}, which is a single program.
+     *
+     * @return true if the build links the classes
+     */
+    boolean linked() {
+        return wholeProgram || inline || format.equals("asm");
+    }
+
+    /**
+     * Returns a fingerprint of the options that affect the generated code, for the {@link BuildManifest}.
+     *
+     * @return the fingerprint
+     */
+    String fingerprint() {
+        return "format=" + format + (optimize ? " -O" : "") + (mutableStrings ? " --mutable-strings" : "");
+    }
+
+    private static int jobs(String value) {
+        int jobs = Integer.parseInt(value);
+        if (jobs < 1) throw new IllegalArgumentException("-j expects a positive number");
+        return jobs;
+    }
+}
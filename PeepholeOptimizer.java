@@ -0,0 +1,222 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This module removes wasteful instruction patterns from compiled {@link VMCode}. Instructions are copied one by one
+ * into a new {@link VMCode}, and after each instruction the rules are tried on the end of the copy until none of
+ * them applies, so that the window slides over the whole instruction stream and rewrites can enable each other
+ * (for example, <code>push constant 0; not; not; if-goto L</code> disappears completely). Labels that are not the
+ * target of any jump in their function are then removed, and the rules are run once more.
+ * <p>
+ * A {@link Rule} looks at the last few instructions of the copy, and may truncate the copy and append a replacement.
+ * The rules must preserve the behavior of the program; {@link #DEFAULT_RULES} lists the rules used by the compiler.
+ *
+ * @author Maarten Derks
+ */
+class PeepholeOptimizer {
+
+    /**
+     * A rewrite rule over the end of a code sequence.
+     */
+    interface Rule {
+        /**
+         * Tries to rewrite the last instructions of the given code.
+         *
+         * @param  code the code, whose last instruction was just added
+         * @return      true if the code was changed
+         */
+        boolean apply(VMCode code);
+    }
+
+    /**
+     * <code>not; not</code> and <code>neg; neg</code> cancel out.
+     */
+    static final Rule DOUBLE_NEGATION = code -> {
+        int n = code.size();
+        if (n >= 2 && isArithmetic(code, n - 1, Command.NOT) && isArithmetic(code, n - 2, Command.NOT)
+                || n >= 2 && isArithmetic(code, n - 1, Command.NEG) && isArithmetic(code, n - 2, Command.NEG)) {
+            code.truncate(n - 2);
+            return true;
+        }
+        return false;
+    };
+
+    /**
+     * <code>push</code> <i>x</i><code>; pop</code> <i>x</i> stores a value where it came from.
+     */
+    static final Rule PUSH_POP = code -> {
+        int n = code.size();
+        if (n >= 2 && code.opcode(n - 1) == VMCode.POP && code.opcode(n - 2) == VMCode.PUSH
+                && code.segment(n - 1) == code.segment(n - 2) && code.index(n - 1) == code.index(n - 2)) {
+            code.truncate(n - 2);
+            return true;
+        }
+        return false;
+    };
+
+    /**
+     * Adding, subtracting or or-ing <code>0</code>, and negating <code>0</code>, leave a value unchanged.
+     */
+    static final Rule NEUTRAL_OPERAND = code -> {
+        int n = code.size();
+        if (n >= 2 && isConstant(code, n - 2, 0) && (isArithmetic(code, n - 1, Command.ADD)
+                || isArithmetic(code, n - 1, Command.SUB) || isArithmetic(code, n - 1, Command.OR))) {
+            code.truncate(n - 2);
+            return true;
+        }
+        if (n >= 2 && isConstant(code, n - 2, 0) && isArithmetic(code, n - 1, Command.NEG)) {
+            code.truncate(n - 1);
+            return true;
+        }
+        return false;
+    };
+
+    /**
+     * A conditional jump on <code>false</code> (<code>push constant 0</code>) is never taken, and one on
+     * <code>true</code> (<code>push constant 0; not</code>) is always taken.
+     */
+    static final Rule CONSTANT_CONDITION = code -> {
+        int n = code.size();
+        if (n >= 2 && code.opcode(n - 1) == VMCode.IF_GOTO && isConstant(code, n - 2, 0)) {
+            code.truncate(n - 2);
+            return true;
+        }
+        if (n >= 3 && code.opcode(n - 1) == VMCode.IF_GOTO && isArithmetic(code, n - 2, Command.NOT)
+                && isConstant(code, n - 3, 0)) {
+            String label = code.name(n - 1);
+            code.truncate(n - 3);
+            code.goTo(label);
+            return true;
+        }
+        return false;
+    };
+
+    /**
+     * <code>not; if-goto</code> <i>a</i><code>; goto</code> <i>b</i><code>; label</code> <i>a</i> (an
+     * <code>if</code> statement on a negated condition) jumps to <i>b</i> exactly when the operand of
+     * <code>not</code> is true, provided that operand is a boolean, i.e. the result of a comparison:
+     * <code>if-goto</code> <i>b</i><code>; label</code> <i>a</i>.
+     */
+    static final Rule NEGATED_BRANCH = code -> {
+        int n = code.size();
+        if (n >= 5 && code.opcode(n - 1) == VMCode.LABEL && code.opcode(n - 2) == VMCode.GOTO
+                && code.opcode(n - 3) == VMCode.IF_GOTO && isArithmetic(code, n - 4, Command.NOT)
+                && isComparison(code, n - 5) && code.name(n - 3).equals(code.name(n - 1))) {
+            String a = code.name(n - 1), b = code.name(n - 2);
+            code.truncate(n - 4);
+            code.ifGoTo(b);
+            code.label(a);
+            return true;
+        }
+        return false;
+    };
+
+    /**
+     * A <code>goto</code> to the label that immediately follows it does nothing.
+     */
+    static final Rule JUMP_TO_NEXT = code -> {
+        int n = code.size();
+        if (n >= 2 && code.opcode(n - 1) == VMCode.LABEL && code.opcode(n - 2) == VMCode.GOTO
+                && code.name(n - 1).equals(code.name(n - 2))) {
+            String label = code.name(n - 1);
+            code.truncate(n - 2);
+            code.label(label);
+            return true;
+        }
+        return false;
+    };
+
+    /**
+     * Instructions after a <code>goto</code> or <code>return</code> are unreachable up to the next label or function.
+     */
+    static final Rule UNREACHABLE = code -> {
+        int n = code.size();
+        if (n >= 2 && (code.opcode(n - 2) == VMCode.GOTO || code.opcode(n - 2) == VMCode.RETURN)
+                && code.opcode(n - 1) != VMCode.LABEL && code.opcode(n - 1) != VMCode.FUNCTION) {
+            code.truncate(n - 1);
+            return true;
+        }
+        return false;
+    };
+
+    static final List<Rule> DEFAULT_RULES = List.of(DOUBLE_NEGATION, PUSH_POP, NEUTRAL_OPERAND, CONSTANT_CONDITION,
+            NEGATED_BRANCH, JUMP_TO_NEXT, UNREACHABLE);
+
+    private final List<Rule> rules;
+
+    /**
+     * Creates an optimizer with the {@link #DEFAULT_RULES default rules}.
+     */
+    PeepholeOptimizer() {
+        this(DEFAULT_RULES);
+    }
+
+    /**
+     * Creates an optimizer with the given rules.
+     *
+     * @param rules the rules, tried in order
+     */
+    PeepholeOptimizer(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Returns an optimized copy of the given code.
+     *
+     * @param  code the code
+     * @return      the optimized code
+     */
+    VMCode optimize(VMCode code) {
+        return slide(removeUnusedLabels(slide(code)));
+    }
+
+    private VMCode slide(VMCode code) {
+        VMCode out = new VMCode();
+        for (int i = 0; i < code.size(); i++) {
+            out.copy(code, i);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Rule rule : rules) {
+                    if (rule.apply(out)) {
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private static VMCode removeUnusedLabels(VMCode code) {
+        VMCode out = new VMCode();
+        Set<String> targets = new HashSet<>();
+        for (int start = 0, end; start < code.size(); start = end) {
+            // labels are local to their function
+            end = start + 1;
+            while (end < code.size() && code.opcode(end) != VMCode.FUNCTION) end++;
+            targets.clear();
+            for (int i = start; i < end; i++) {
+                if (code.opcode(i) == VMCode.GOTO || code.opcode(i) == VMCode.IF_GOTO) targets.add(code.name(i));
+            }
+            for (int i = start; i < end; i++) {
+                if (code.opcode(i) != VMCode.LABEL || targets.contains(code.name(i))) out.copy(code, i);
+            }
+        }
+        return out;
+    }
+
+    private static boolean isArithmetic(VMCode code, int i, Command command) {
+        return code.opcode(i) == VMCode.ARITHMETIC && code.command(i) == command;
+    }
+
+    private static boolean isComparison(VMCode code, int i) {
+        return code.opcode(i) == VMCode.ARITHMETIC
+                && (code.command(i) == Command.EQ || code.command(i) == Command.LT || code.command(i) == Command.GT);
+    }
+
+    private static boolean isConstant(VMCode code, int i, int value) {
+        return code.opcode(i) == VMCode.PUSH && code.segment(i) == Segment.CONSTANT && code.index(i) == value;
+    }
+}
@@ -0,0 +1,154 @@
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * This module compiles a single class in three pipelined stages, each on a thread of its own:
+ * <ol>
+ *     <li>the lexer, which scans the source into batches of tokens (see {@link JackTokenizer#lexAhead()});</li>
+ *     <li>the {@link CompilationEngine} (or, with {@link Options#ast}, the {@link JackParser} and
+ *     {@link CodeGenerator}), which runs on the calling thread and hands on the code of each function as soon as it is
+ *     compiled; and</li>
+ *     <li>the writer, which runs the {@link PeepholeOptimizer} over each function if the options ask for it, and
+ *     encodes and writes it.</li>
+ * </ol>
+ * The stages are connected by bounded queues, so a stage that runs ahead blocks until the next stage catches up, and
+ * a class of any size is compiled in a bounded amount of memory besides its source. The output is the same as that of
+ * {@link JackCompiler#translate} and {@link JackCompiler#write}.
+ *
+ * @author Maarten Derks
+ */
+class Pipeline {
+
+    /**
+     * The number of compiled functions that can wait for the writer.
+     */
+    static final int FUNCTIONS = 16;
+
+    private static final VMCode END = new VMCode();
+
+    /**
+     * Compiles the class of the given tokenizer, and writes its code in the output format of the given options.
+     *
+     * @param jt      the tokenizer
+     * @param options the compiler options
+     * @param out     the output channel, which is closed afterwards
+     * @param result  the result to record the instruction and call counts in, or <code>null</code>
+     * @param index   the signatures of the classes of the build, or <code>null</code>
+     */
+    static void compile(JackTokenizer jt, Options options, WritableByteChannel out, JackCompiler.Result result,
+            SignatureIndex index) throws Exception {
+        BlockingQueue<VMCode> functions = new ArrayBlockingQueue<>(FUNCTIONS);
+        Writer writer = new Writer(functions, options, out);
+        Thread lexer = jt.lexAhead();
+        writer.start();
+        try {
+            Consumer<VMCode> sink = function -> put(functions, function);
+            int instructionsSaved, callsSaved, callsReduced;
+            if (options.ast) {
+                CodeGenerator cg = new CodeGenerator(new JackParser(jt).parseClass(), options);
+                cg.stream(sink);
+                cg.resolve(index);
+                cg.generate();
+                instructionsSaved = cg.instructionsSaved();
+                callsSaved = cg.callsSaved();
+                callsReduced = cg.callsReduced();
+            } else {
+                CompilationEngine ce = new CompilationEngine(jt, options);
+                ce.stream(sink);
+                ce.resolve(index);
+                ce.compileClass();
+                instructionsSaved = ce.instructionsSaved();
+                callsSaved = ce.callsSaved();
+                callsReduced = ce.callsReduced();
+            }
+            put(functions, END);
+            writer.join();
+            if (writer.error != null) throw writer.error;
+            if (result != null) result.metrics.instructions = writer.written;
+            if (result != null && options.optimize) {
+                result.instructions = writer.instructions + instructionsSaved;
+                result.optimizedInstructions = writer.optimizedInstructions;
+                result.calls = writer.calls + callsSaved;
+                result.optimizedCalls = writer.optimizedCalls;
+                result.reducedCalls = callsReduced;
+            }
+        } finally {
+            lexer.interrupt();
+            writer.interrupt();
+        }
+    }
+
+    private static void put(BlockingQueue<VMCode> functions, VMCode function) {
+        try {
+            functions.put(function);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the writer");
+        }
+    }
+
+    /**
+     * The writer stage. After an error, it keeps taking functions, so that the compiler does not block, until the
+     * end of the class.
+     */
+    private static class Writer extends Thread {
+
+        private final BlockingQueue<VMCode> functions;
+        private final Options options;
+        private final WritableByteChannel out;
+        private final PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        int instructions, optimizedInstructions, calls, optimizedCalls, written;
+        Exception error;
+
+        Writer(BlockingQueue<VMCode> functions, Options options, WritableByteChannel out) {
+            super("writer");
+            setDaemon(true);
+            this.functions = functions;
+            this.options = options;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            // the binary format starts with the constant table, so it can only be written once the class is complete
+            boolean text = options.format.equals("vm");
+            VMWriter vmw = text ? new VMWriter(out) : null;
+            VMCode code = text ? null : new VMCode();
+            try {
+                for (VMCode function = functions.take(); function != END; function = functions.take()) {
+                    if (error != null) continue;
+                    try {
+                        if (options.optimize) {
+                            VMCode optimized = optimizer.optimize(function);
+                            instructions += function.size();
+                            optimizedInstructions += optimized.size();
+                            calls += function.occurrences(VMCode.CALL);
+                            optimizedCalls += optimized.occurrences(VMCode.CALL);
+                            function = optimized;
+                        }
+                        written += function.size();
+                        if (text) {
+                            function.writeTo(vmw);
+                        } else {
+                            for (int i = 0; i < function.size(); i++) code.copy(function, i);
+                        }
+                    } catch (RuntimeException e) {
+                        error = e;
+                    }
+                }
+                if (error != null) return;
+                if (text) {
+                    vmw.close();
+                } else {
+                    JackCompiler.write(code, options, out);
+                }
+            } catch (InterruptedException e) {
+                // the compiler has stopped
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+}
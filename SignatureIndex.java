@@ -0,0 +1,434 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This module holds the signatures of the classes of a build: the kind, name, parameter count and return type of each
+ * subroutine, and the static variables and fields of each class in the order of their indices. A first pass over the
+ * sources reads only the declarations, skipping the subroutine bodies, so the compilation of a class can resolve its
+ * calls of other classes without compiling them first. The index is immutable while the classes are compiled, so the
+ * workers of a build share it.
+ * <p>
+ * The {@link CompilationEngine} and the {@link CodeGenerator} use the index to tell a call of a class from a call of
+ * the current class, and a call of a function or constructor of the current class from a method call; and they report
+ * calls of subroutines that a class of the index does not define, calls of methods without an object, calls of
+ * functions on an object, and calls with the wrong number of arguments. Classes outside the build, such as those of
+ * the OS, are not checked.
+ * <p>
+ * In an incremental build, the index is kept in an index file in each output folder, next to the
+ * {@link BuildManifest}, and a source whose content hash is unchanged is not scanned again. The file has the format
+ * <pre>
+ * "JSIX" version:u1 entries:u4 (source:utf hash:utf parsed:u1 class?)*
+ * class = name:utf variables:u2 (kind:u1 type:utf name:utf)* subroutines:u2 (kind:u1 type:utf name:utf parameters:u1)*
+ * </pre>
+ * where the kinds are the ordinals of {@link Kind} and {@link Keyword}, and a source whose declarations cannot be
+ * parsed has no class.
+ *
+ * @author Maarten Derks
+ */
+class SignatureIndex {
+
+    static final String FILE_NAME = ".jackc-index";
+    private static final byte[] MAGIC = {'J', 'S', 'I', 'X'};
+    private static final int VERSION = 1;
+
+    /**
+     * A subroutine declaration.
+     */
+    static class Subroutine {
+        final Keyword kind;
+        final String type;
+        final String name;
+        final int parameters;
+
+        Subroutine(Keyword kind, String type, String name, int parameters) {
+            this.kind = kind;
+            this.type = type;
+            this.name = name;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * The declarations of a class.
+     */
+    static class Signature {
+        final String name;
+        final List<Kind> kinds = new ArrayList<>();
+        final List<String> types = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final Map<String, Subroutine> subroutines = new LinkedHashMap<>();
+
+        Signature(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The signature of a source file, or <code>null</code> if its declarations cannot be parsed, with the content
+     * hash of the source if the index is kept in a file.
+     */
+    private static class Entry {
+        final File dir;
+        final String hash;
+        final Signature signature;
+
+        Entry(File dir, String hash, Signature signature) {
+            this.dir = dir;
+            this.hash = hash;
+            this.signature = signature;
+        }
+    }
+
+    private final Map<File, Entry> entries = new HashMap<>();
+    private final Set<File> members = new HashSet<>();
+    private final Set<File> loaded = new HashSet<>();
+    private final Set<File> changed = new HashSet<>();
+    private final Map<String, Signature> classes = new HashMap<>();
+    private String fingerprint;
+
+    /**
+     * Reads the declarations of the given files that changed since the index last read them. With
+     * {@link Options#incremental}, the index files of their output folders are loaded first, and the signatures are
+     * only read again if the content hash of a source differs; otherwise all given files are read. The declarations
+     * are read by up to {@link Options#jobs} worker threads.
+     *
+     * @param files   the source files
+     * @param options the compiler options
+     */
+    void update(List<File> files, Options options) throws IOException, InterruptedException {
+        boolean keep = options.incremental;
+        List<File> dirs = new ArrayList<>();
+        Set<File> loading = new HashSet<>();
+        for (File f : files) {
+            File dir = JackCompiler.outputFile(f, options).getParentFile();
+            dirs.add(dir);
+            if (keep && loaded.add(dir)) {
+                load(dir);
+                loading.add(dir);
+            }
+        }
+        List<Entry> updated = new ArrayList<>();
+        int jobs = Math.min(options.jobs, files.size());
+        if (jobs <= 1) {
+            for (int i = 0; i < files.size(); i++) {
+                updated.add(entry(files.get(i), dirs.get(i), keep));
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(jobs);
+            try {
+                List<Future<Entry>> futures = new ArrayList<>();
+                for (int i = 0; i < files.size(); i++) {
+                    File f = files.get(i), dir = dirs.get(i);
+                    futures.add(pool.submit(() -> entry(f, dir, keep)));
+                }
+                for (Future<Entry> future : futures) {
+                    try {
+                        updated.add(future.get());
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause());
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Entry entry = updated.get(i);
+            if (entry == null) continue;
+            entries.put(files.get(i), entry);
+            if (keep) changed.add(entry.dir);
+        }
+        members.addAll(files);
+        for (Map.Entry<File, Entry> e : entries.entrySet()) {
+            // an index file that lists a source outside the build, such as a deleted one, is written again without it
+            if (loading.contains(e.getValue().dir) && !members.contains(e.getKey())) changed.add(e.getValue().dir);
+        }
+        index();
+    }
+
+    /**
+     * Reads the signature of a source file, unless the entry of the index is up to date.
+     *
+     * @return the new entry, or <code>null</code> if the entry is up to date
+     */
+    private Entry entry(File f, File dir, boolean keep) throws IOException {
+        JackTokenizer jt;
+        String hash = null;
+        if (keep) {
+            byte[] source;
+            try {
+                source = Files.readAllBytes(f.toPath());
+            } catch (IOException e) {
+                // reported when the file is compiled
+                return new Entry(dir, null, null);
+            }
+            hash = BuildManifest.hash(source);
+            Entry entry = entries.get(f);
+            if (entry != null && hash.equals(entry.hash)) return null;
+            jt = new JackTokenizer(ByteBuffer.wrap(source));
+        } else {
+            try {
+                jt = new JackTokenizer(f);
+            } catch (IOException e) {
+                return new Entry(dir, null, null);
+            }
+        }
+        try {
+            return new Entry(dir, hash, scan(jt));
+        } catch (RuntimeException e) {
+            // a syntax error, which the compilation of the file reports
+            return new Entry(dir, hash, null);
+        }
+    }
+
+    /**
+     * Leaves the classes of the files that are not among the given ones, such as deleted files, out of the index.
+     *
+     * @param files the files of the build
+     */
+    void retain(Set<File> files) {
+        for (File f : members) {
+            if (files.contains(f)) continue;
+            Entry entry = entries.remove(f);
+            if (entry != null && entry.hash != null) changed.add(entry.dir);
+        }
+        members.retainAll(files);
+        index();
+    }
+
+    private void index() {
+        classes.clear();
+        for (File f : members) {
+            Entry entry = entries.get(f);
+            if (entry != null && entry.signature != null) classes.put(entry.signature.name, entry.signature);
+        }
+        fingerprint = null;
+    }
+
+    /**
+     * Writes the index files of the output folders whose entries changed, with the entries of the sources of the
+     * build.
+     */
+    void save() throws IOException {
+        for (File dir : changed) {
+            Map<String, Entry> kept = new TreeMap<>();
+            for (Map.Entry<File, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                if (entry.dir.equals(dir) && entry.hash != null && members.contains(e.getKey())) {
+                    kept.put(e.getKey().getPath(), entry);
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bytes);
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(kept.size());
+            for (Map.Entry<String, Entry> e : kept.entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeUTF(e.getValue().hash);
+                dos.writeBoolean(e.getValue().signature != null);
+                if (e.getValue().signature != null) write(dos, e.getValue().signature);
+            }
+            Files.write(new File(dir, FILE_NAME).toPath(), bytes.toByteArray());
+        }
+        changed.clear();
+    }
+
+    /**
+     * Loads the index file of the given output folder, if there is one in the current format. A file that cannot be
+     * read is ignored, and written again on {@link #save}.
+     */
+    private void load(File dir) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.isFile()) return;
+        Map<File, Entry> read = new HashMap<>();
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+            byte[] magic = new byte[MAGIC.length];
+            dis.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || dis.readUnsignedByte() != VERSION) return;
+            for (int i = dis.readInt(); i > 0; i--) {
+                File source = new File(dis.readUTF());
+                String hash = dis.readUTF();
+                read.put(source, new Entry(dir, hash, dis.readBoolean() ? read(dis) : null));
+            }
+        } catch (IOException e) {
+            // a truncated or damaged index file is only a lost cache: the sources are scanned, and it is written again
+            changed.add(dir);
+            return;
+        }
+        entries.putAll(read);
+    }
+
+    private static void write(DataOutputStream dos, Signature signature) throws IOException {
+        dos.writeUTF(signature.name);
+        dos.writeShort(signature.names.size());
+        for (int i = 0; i < signature.names.size(); i++) {
+            dos.writeByte(signature.kinds.get(i).ordinal());
+            dos.writeUTF(signature.types.get(i));
+            dos.writeUTF(signature.names.get(i));
+        }
+        dos.writeShort(signature.subroutines.size());
+        for (Subroutine subroutine : signature.subroutines.values()) {
+            dos.writeByte(subroutine.kind.ordinal());
+            dos.writeUTF(subroutine.type);
+            dos.writeUTF(subroutine.name);
+            dos.writeByte(subroutine.parameters);
+        }
+    }
+
+    private static Signature read(DataInputStream dis) throws IOException {
+        Signature signature = new Signature(dis.readUTF());
+        for (int i = dis.readUnsignedShort(); i > 0; i--) {
+            signature.kinds.add(Kind.values()[ordinal(dis, Kind.values().length)]);
+            signature.types.add(dis.readUTF());
+            signature.names.add(dis.readUTF());
+        }
+        for (int i = dis.readUnsignedShort(); i > 0; i--) {
+            Keyword kind = Keyword.values()[ordinal(dis, Keyword.values().length)];
+            String type = dis.readUTF();
+            String name = dis.readUTF();
+            signature.subroutines.put(name, new Subroutine(kind, type, name, dis.readUnsignedByte()));
+        }
+        return signature;
+    }
+
+    private static int ordinal(DataInputStream dis, int count) throws IOException {
+        int ordinal = dis.readUnsignedByte();
+        if (ordinal >= count) throw new IOException("Malformed index file");
+        return ordinal;
+    }
+
+    /**
+     * Reads the declarations of the class of the given tokenizer, and skips the bodies of its subroutines.
+     *
+     * @param  jt the tokenizer
+     * @return    the signature of the class
+     */
+    static Signature scan(JackTokenizer jt) {
+        jt.advance();
+        jt.expect(Keyword.CLASS);
+        Signature signature = new Signature(jt.expectIdentifier());
+        jt.expect('{');
+        while (jt.isKeyword(JackTokenizer.CLASS_VAR_DEC)) {
+            Kind kind = jt.expect(JackTokenizer.CLASS_VAR_DEC) == Keyword.STATIC ? Kind.STATIC : Kind.FIELD;
+            String type = jt.expectType(JackTokenizer.TYPE);
+            while (true) {
+                signature.kinds.add(kind);
+                signature.types.add(type);
+                signature.names.add(jt.expectIdentifier());
+                if (!jt.isSymbol(',')) break;
+                jt.expect(',');
+            }
+            jt.expect(';');
+        }
+        while (jt.isKeyword(JackTokenizer.SUBROUTINE_DEC)) {
+            Keyword kind = jt.expect(JackTokenizer.SUBROUTINE_DEC);
+            String type = jt.expectType(JackTokenizer.RETURN_TYPE);
+            String name = jt.expectIdentifier();
+            jt.expect('(');
+            int parameters = 0;
+            while (!jt.isSymbol(')')) {
+                if (parameters > 0) jt.expect(',');
+                jt.expectType(JackTokenizer.TYPE);
+                jt.expectIdentifier();
+                parameters++;
+            }
+            jt.expect(')');
+            signature.subroutines.put(name, new Subroutine(kind, type, name, parameters));
+            jt.skipBlock();
+        }
+        jt.expect('}');
+        return signature;
+    }
+
+    /**
+     * Returns the signature of the given class, or <code>null</code> if the class is not part of the build.
+     *
+     * @param  className the class name
+     * @return           the signature, or <code>null</code>
+     */
+    Signature get(String className) {
+        return classes.get(className);
+    }
+
+    /**
+     * Returns a hash of the signatures of all classes, which changes whenever a declaration changes. Code that depends
+     * on the index, such as that of an incremental build, is out of date if this changes.
+     *
+     * @return the hash
+     */
+    String fingerprint() {
+        if (fingerprint == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bytes);
+            try {
+                for (Signature signature : new TreeMap<>(classes).values()) write(dos, signature);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            fingerprint = BuildManifest.hash(bytes.toByteArray());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Checks a call of a subroutine of a class of the index.
+     *
+     * @param  className  the class of the subroutine
+     * @param  name       the name of the subroutine
+     * @param  method     true if the call passes an object
+     * @return            the problem with the call, or <code>null</code> if there is none or the class is not known
+     */
+    String check(String className, String name, boolean method) {
+        Signature signature = classes.get(className);
+        if (signature == null) return null;
+        Subroutine subroutine = signature.subroutines.get(name);
+        if (subroutine == null) {
+            return "Undefined subroutine " + className + "." + name;
+        } else if (method && subroutine.kind != Keyword.METHOD) {
+            return "Call of " + subroutine.kind.toString().toLowerCase() + " " + className + "." + name
+                    + " on an object";
+        } else if (!method && subroutine.kind == Keyword.METHOD) {
+            return "Call of method " + className + "." + name + " without an object";
+        }
+        return null;
+    }
+
+    /**
+     * Checks the number of arguments of a call.
+     *
+     * @param  function the full name of the function called
+     * @param  nArgs    the number of arguments, including the object of a method
+     * @return          the problem with the call, or <code>null</code> if there is none or the class is not known
+     */
+    String checkArguments(String function, int nArgs) {
+        int dot = function.indexOf('.');
+        Signature signature = classes.get(function.substring(0, dot));
+        Subroutine subroutine = signature != null ? signature.subroutines.get(function.substring(dot + 1)) : null;
+        if (subroutine == null) return null;
+        int given = subroutine.kind == Keyword.METHOD ? nArgs - 1 : nArgs;
+        if (given == subroutine.parameters) return null;
+        return function + " takes " + subroutine.parameters + " argument" + (subroutine.parameters == 1 ? "" : "s")
+                + " but is called with " + given;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This module replaces the calls of <code>Math.multiply</code> and <code>Math.divide</code> that the compiler emits
+ * for <code>*</code> and <code>/</code> by cheaper instructions, if one operand is a constant. A multiplication by a
+ * constant <i>c</i> is computed by doubling and adding, from the most significant bit of |<i>c</i>| down, and negated
+ * if <i>c</i> is negative; this is exact in 16 bits, as <code>Math.multiply</code> is. For example, <code>x * 10</code>
+ * becomes
+ * <pre>
+ * push x; push x; add; pop temp 2; push temp 2; push temp 2; add; push x; add; pop temp 2; push temp 2; push temp 2;
+ * add
+ * </pre>
+ * An operand that is not a single <code>push</code> is kept in <code>temp 1</code> rather than computed again, and
+ * the doubled value in <code>temp 2</code>; neither is used across any other code. A multiplication by 0 leaves only
+ * the calls of the other operand, and a multiplication or division by 1 only the other operand. Sequences of more
+ * than {@link #LIMIT} instructions are not used.
+ * <p>
+ * The VM has no right shift, and extracting the bits of a quotient one by one costs more than
+ * <code>Math.divide</code>, so division by other constants is left to the OS.
+ *
+ * @author Maarten Derks
+ */
+class StrengthReducer {
+
+    /**
+     * The maximum number of instructions that replace an operator and its constant operand.
+     */
+    static final int LIMIT = 16;
+
+    /**
+     * Emits the given operator with cheaper instructions than a call, if that is possible. The code ends with the two
+     * operands of the operator.
+     *
+     * @param  code  the code
+     * @param  start index of the first instruction of the left operand
+     * @param  right index of the first instruction of the right operand
+     * @param  op    the operator
+     * @return       true if the operator was emitted, false if nothing changed
+     */
+    static boolean reduce(VMCode code, int start, int right, char op) {
+        if (op != '*' && op != '/') return false;
+        int end = code.size();
+        int c, from, to;
+        if (code.isConstant(right, end)) {
+            c = code.constant(right, end);
+            from = start;
+            to = right;
+        } else if (op == '*' && code.isConstant(start, right)) {
+            c = code.constant(start, right);
+            from = right;
+            to = end;
+        } else {
+            return false;
+        }
+        if (op == '/') {
+            if (c != 1) return false;
+            code.truncate(right);
+            return true;
+        }
+
+        VMCode operand = new VMCode();
+        boolean pure = true;
+        for (int i = from; i < to; i++) {
+            operand.copy(code, i);
+            if (code.opcode(i) == VMCode.CALL) pure = false;
+        }
+        VMCode product = new VMCode();
+        if (c == 0) {
+            if (pure) {
+                operand = new VMCode();
+            } else {
+                product.pop(Segment.TEMP, 0);
+            }
+            product.push(Segment.CONSTANT, 0);
+        } else {
+            boolean simple = operand.size() == 1 && operand.opcode(0) == VMCode.PUSH;
+            multiply(product, c, simple ? operand.segment(0) : Segment.TEMP, simple ? operand.index(0) : 1,
+                    !simple);
+            if (product.size() > LIMIT) return false;
+        }
+        code.truncate(start);
+        for (int i = 0; i < operand.size(); i++) code.copy(operand, i);
+        for (int i = 0; i < product.size(); i++) code.copy(product, i);
+        return true;
+    }
+
+    /**
+     * Emits the multiplication of the value on the stack by the given constant.
+     *
+     * @param code    the code to emit to
+     * @param c       the constant, not 0
+     * @param segment the segment of the value
+     * @param index   the index of the value
+     * @param save    true if the value must first be saved to <code>temp 1</code>, the given segment and index
+     */
+    private static void multiply(VMCode code, int c, Segment segment, int index, boolean save) {
+        int magnitude = Math.abs(c);
+        if (save && magnitude > 1) {
+            code.pop(Segment.TEMP, 1);
+            code.push(Segment.TEMP, 1);
+        }
+        boolean doubled = false;
+        for (int bit = Integer.highestOneBit(magnitude) >> 1; bit > 0; bit >>= 1) {
+            if (doubled) {
+                code.pop(Segment.TEMP, 2);
+                code.push(Segment.TEMP, 2);
+                code.push(Segment.TEMP, 2);
+            } else {
+                code.push(segment, index);
+            }
+            code.arithmetic(Command.ADD);
+            doubled = true;
+            if ((magnitude & bit) != 0) {
+                code.push(segment, index);
+                code.arithmetic(Command.ADD);
+            }
+        }
+        if (c < 0) code.arithmetic(Command.NEG);
+    }
+}
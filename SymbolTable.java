@@ -1,31 +1,56 @@
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * This module provides services for building, populating, and using symbol tables that keep track of the symbol
  * properties <i>name</i>, <i>type</i>, <i>kind</i>, and a running <i>index</i> for each kind.
+ * <p>
+ * The symbols are kept in parallel arrays in order of definition, with an open-addressing hash index over the names,
+ * so that a lookup does not allocate or box, and the number of variables of each kind is kept in a counter. A table
+ * for the scope of a subroutine can be given the table of its class as enclosing table, so that {@link #lookup} finds
+ * a variable in either scope in a single call.
  *
  * @author Maarten Derks
  */
 class SymbolTable {
 
-    private final HashMap<String, Object[]> ht;
-    private int staticIndex, fieldIndex, argIndex, varIndex;
+    private static final Kind[] KINDS = Kind.values();
+    private static final Segment[] SEGMENTS = {Segment.STATIC, Segment.THIS, Segment.ARGUMENT, Segment.LOCAL};
+
+    private final SymbolTable outer;
+    private String[] names = new String[16], types = new String[16];
+    private byte[] kinds = new byte[16];
+    private int[] indexes = new int[16];
+    private int size;
+    private int[] slots = new int[32];    // entry + 1, or 0 if free
+    private final int[] counts = new int[4];
 
     /**
      * Creates a new symbol table.
      */
     SymbolTable() {
-        ht = new HashMap<>();
-        staticIndex = fieldIndex = argIndex = varIndex = 0;
+        this(null);
+    }
+
+    /**
+     * Creates a new symbol table for a scope that is nested in the scope of the given table.
+     *
+     * @param outer the table of the enclosing scope, or <code>null</code>
+     */
+    SymbolTable(SymbolTable outer) {
+        this.outer = outer;
     }
 
     /**
      * Empties the symbol table, and resets the four indexes to 0. Should be called when starting to compile a
-     * subroutine declaration.
+     * subroutine declaration. The enclosing table is not changed.
      */
     void reset() {
-        ht.clear();
-        staticIndex = fieldIndex = argIndex = varIndex = 0;
+        if (size == 0) return;
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(types, 0, size, null);
+        Arrays.fill(slots, 0);
+        Arrays.fill(counts, 0);
+        size = 0;
     }
 
     /**
@@ -37,20 +62,18 @@ class SymbolTable {
      * @param kind the <code>kind</code> of the variable
      */
     void define(String name, String type, Kind kind) {
-        switch (kind) {
-            case STATIC:
-                ht.put(name, new Object[]{type, kind, staticIndex++});
-                break;
-            case FIELD:
-                ht.put(name, new Object[]{type, kind, fieldIndex++});
-                break;
-            case ARG:
-                ht.put(name, new Object[]{type, kind, argIndex++});
-                break;
-            case VAR:
-                ht.put(name, new Object[]{type, kind, varIndex++});
-                break;
+        int slot = slot(name);
+        int entry = slots[slot] - 1;
+        if (entry < 0) {
+            if (size == names.length) grow();
+            entry = size++;
+            names[entry] = name;
+            slots[slot] = entry + 1;
+            if (2 * size > slots.length) rehash();
         }
+        types[entry] = type;
+        kinds[entry] = (byte) kind.ordinal();
+        indexes[entry] = counts[kind.ordinal()]++;
     }
 
     /**
@@ -60,13 +83,7 @@ class SymbolTable {
      * @return      the number of variables of the given <code>kind</code>
      */
     int varCount(Kind kind) {
-        int numberOfVariables = 0;
-        for (String key : ht.keySet()) {
-            if (kindOf(key).equals(kind)) {
-                numberOfVariables++;
-            }
-        }
-        return numberOfVariables;
+        return kind == Kind.NONE ? 0 : counts[kind.ordinal()];
     }
 
     /**
@@ -77,7 +94,8 @@ class SymbolTable {
      * @return      the <code>kind</code> of the named variable
      */
     Kind kindOf(String name) {
-        return ht.get(name) == null ? Kind.NONE : (Kind) ht.get(name)[1];
+        int entry = find(name);
+        return entry < 0 ? Kind.NONE : KINDS[kinds[entry]];
     }
 
     /**
@@ -87,7 +105,7 @@ class SymbolTable {
      * @return      the <code>type</code> of the named variable
      */
     String typeOf(String name) {
-        return (String) ht.get(name)[0];
+        return types[find(name)];
     }
 
     /**
@@ -97,6 +115,84 @@ class SymbolTable {
      * @return      the <code>index</code> of the named variable
      */
     int indexOf(String name) {
-        return (int) ht.get(name)[2];
+        return indexes[find(name)];
+    }
+
+    /**
+     * Looks up the named variable in this table and, if it is not defined here, in the enclosing tables. Returns the
+     * VM segment and index of the variable packed into an int, see {@link #segment(int)} and {@link #index(int)}.
+     *
+     * @param  name variable to look up
+     * @return      the segment and index of the variable, or -1 if it is not defined
+     */
+    int lookup(String name) {
+        for (SymbolTable table = this; table != null; table = table.outer) {
+            int entry = table.find(name);
+            if (entry >= 0) return table.kinds[entry] << 16 | table.indexes[entry];
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up the <code>type</code> of the named variable in this table and, if it is not defined here, in the
+     * enclosing tables.
+     *
+     * @param  name variable to look up
+     * @return      the <code>type</code> of the variable, or <code>null</code> if it is not defined
+     */
+    String lookupType(String name) {
+        for (SymbolTable table = this; table != null; table = table.outer) {
+            int entry = table.find(name);
+            if (entry >= 0) return table.types[entry];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the segment of a variable found by {@link #lookup}.
+     *
+     * @param  variable the result of {@link #lookup}
+     * @return          the VM segment
+     */
+    static Segment segment(int variable) {
+        return SEGMENTS[variable >>> 16];
+    }
+
+    /**
+     * Returns the index of a variable found by {@link #lookup}.
+     *
+     * @param  variable the result of {@link #lookup}
+     * @return          the index in the VM segment
+     */
+    static int index(int variable) {
+        return variable & 0xFFFF;
+    }
+
+    private int find(String name) {
+        return slots[slot(name)] - 1;
+    }
+
+    private int slot(String name) {
+        int mask = slots.length - 1;
+        int h = name.hashCode() * 0x9E3779B9;
+        int slot = (h ^ h >>> 16) & mask;
+        while (slots[slot] != 0 && !names[slots[slot] - 1].equals(name)) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        names = Arrays.copyOf(names, size * 2);
+        types = Arrays.copyOf(types, size * 2);
+        kinds = Arrays.copyOf(kinds, size * 2);
+        indexes = Arrays.copyOf(indexes, size * 2);
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for (int entry = 0; entry < size; entry++) {
+            slots[slot(names[entry])] = entry + 1;
+        }
     }
 }
@@ -0,0 +1,248 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This module holds the abstract syntax tree of a class in an arena: every node is an index into a set of parallel
+ * primitive arrays, which hold the kind of the node, two int attributes, and the links to its first child, its last
+ * child and its next sibling. Names, types and string constants are kept once each in a name table, and attributes
+ * refer to them by index. A tree of any size is thus made of a few arrays rather than of an object per node. The
+ * line and column of the "(" of each {@link #CALL} are kept aside, in order of the calls, for the errors that the
+ * index finds in them.
+ * <p>
+ * The attributes of each kind of node, and its children in order, are:
+ * <table>
+ *     <tr><th>kind</th><th>a</th><th>b</th><th>children</th></tr>
+ *     <tr><td>{@link #CLASS}</td><td>name</td><td></td><td>class variables, subroutines</td></tr>
+ *     <tr><td>{@link #VAR_DEC}</td><td>name</td><td>type &lt;&lt; 3 | {@link Kind} ordinal</td><td></td></tr>
+ *     <tr><td>{@link #SUBROUTINE}</td><td>name</td><td>{@link Keyword} ordinal</td>
+ *         <td>parameters and local variables, body</td></tr>
+ *     <tr><td>{@link #BLOCK}</td><td></td><td></td><td>statements</td></tr>
+ *     <tr><td>{@link #LET}</td><td>variable name</td><td>1 if indexed</td><td>[index], value</td></tr>
+ *     <tr><td>{@link #IF}</td><td></td><td></td><td>condition, block, [else block]</td></tr>
+ *     <tr><td>{@link #WHILE}</td><td></td><td></td><td>condition, block</td></tr>
+ *     <tr><td>{@link #DO}</td><td></td><td></td><td>expression</td></tr>
+ *     <tr><td>{@link #RETURN}</td><td></td><td></td><td>[expression]</td></tr>
+ *     <tr><td>{@link #INT}</td><td>value</td><td></td><td></td></tr>
+ *     <tr><td>{@link #STRING}</td><td>string</td><td></td><td></td></tr>
+ *     <tr><td>{@link #KEYWORD}</td><td>{@link Keyword} ordinal</td><td></td><td></td></tr>
+ *     <tr><td>{@link #VARIABLE}</td><td>name</td><td></td><td></td></tr>
+ *     <tr><td>{@link #ARRAY}</td><td>name</td><td></td><td>index</td></tr>
+ *     <tr><td>{@link #CALL}</td><td>receiver name, or -1</td><td>subroutine name</td><td>arguments</td></tr>
+ *     <tr><td>{@link #BINARY}</td><td>operator</td><td></td><td>left, right</td></tr>
+ *     <tr><td>{@link #UNARY}</td><td>operator</td><td></td><td>operand</td></tr>
+ * </table>
+ *
+ * @author Maarten Derks
+ */
+class SyntaxTree {
+
+    static final int CLASS = 0, VAR_DEC = 1, SUBROUTINE = 2, BLOCK = 3, LET = 4, IF = 5, WHILE = 6, DO = 7,
+            RETURN = 8, INT = 9, STRING = 10, KEYWORD = 11, VARIABLE = 12, ARRAY = 13, CALL = 14, BINARY = 15,
+            UNARY = 16;
+
+    private byte[] kinds = new byte[256];
+    private int[] as = new int[256], bs = new int[256], firsts = new int[256], lasts = new int[256],
+            nexts = new int[256];
+    private int size;
+    private int[] calls = new int[16], lines = new int[16], columns = new int[16];
+    private int callCount;
+    private String[] names = new String[64];
+    private int nameCount;
+    private final HashMap<String, Integer> nameIndex = new HashMap<>();
+
+    /**
+     * Adds a node without children.
+     *
+     * @param  kind the kind of the node
+     * @param  a    the first attribute
+     * @param  b    the second attribute
+     * @return      the node
+     */
+    int add(int kind, int a, int b) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            as = Arrays.copyOf(as, capacity);
+            bs = Arrays.copyOf(bs, capacity);
+            firsts = Arrays.copyOf(firsts, capacity);
+            lasts = Arrays.copyOf(lasts, capacity);
+            nexts = Arrays.copyOf(nexts, capacity);
+        }
+        kinds[size] = (byte) kind;
+        as[size] = a;
+        bs[size] = b;
+        firsts[size] = lasts[size] = nexts[size] = -1;
+        return size++;
+    }
+
+    /**
+     * Appends a node to the children of another node.
+     *
+     * @param parent the parent node
+     * @param child  the child node, which must not have a parent yet
+     */
+    void append(int parent, int child) {
+        if (firsts[parent] < 0) {
+            firsts[parent] = child;
+        } else {
+            nexts[lasts[parent]] = child;
+        }
+        lasts[parent] = child;
+    }
+
+    /**
+     * Sets the second attribute of a node.
+     *
+     * @param node the node
+     * @param b    the second attribute
+     */
+    void setB(int node, int b) {
+        bs[node] = b;
+    }
+
+    /**
+     * Sets the position of a call, which must come after the calls whose positions are set already.
+     *
+     * @param node   the {@link #CALL} node
+     * @param line   the line of its "("
+     * @param column the column of its "("
+     */
+    void setPosition(int node, int line, int column) {
+        if (callCount == calls.length) {
+            calls = Arrays.copyOf(calls, callCount * 2);
+            lines = Arrays.copyOf(lines, callCount * 2);
+            columns = Arrays.copyOf(columns, callCount * 2);
+        }
+        calls[callCount] = node;
+        lines[callCount] = line;
+        columns[callCount] = column;
+        callCount++;
+    }
+
+    /**
+     * Returns the index of the given name in the name table, adding it if needed.
+     *
+     * @param  name the name, type or string constant
+     * @return      its index
+     */
+    int intern(String name) {
+        Integer index = nameIndex.get(name);
+        if (index != null) return index;
+        if (nameCount == names.length) names = Arrays.copyOf(names, nameCount * 2);
+        names[nameCount] = name;
+        nameIndex.put(name, nameCount);
+        return nameCount++;
+    }
+
+    /**
+     * Returns the root node, the {@link #CLASS} node.
+     *
+     * @return the root node
+     */
+    int root() {
+        return 0;
+    }
+
+    /**
+     * Returns the number of nodes.
+     *
+     * @return the number of nodes
+     */
+    int size() {
+        return size;
+    }
+
+    int kind(int node) {
+        return kinds[node];
+    }
+
+    int a(int node) {
+        return as[node];
+    }
+
+    int b(int node) {
+        return bs[node];
+    }
+
+    /**
+     * Returns the first child of a node.
+     *
+     * @param  node the node
+     * @return      the first child, or -1 if the node has no children
+     */
+    int first(int node) {
+        return firsts[node];
+    }
+
+    /**
+     * Returns the next sibling of a node.
+     *
+     * @param  node the node
+     * @return      the next sibling, or -1 if the node is the last child of its parent
+     */
+    int next(int node) {
+        return nexts[node];
+    }
+
+    /**
+     * Returns a name from the name table.
+     *
+     * @param  index the index of the name
+     * @return       the name
+     */
+    String name(int index) {
+        return names[index];
+    }
+
+    /**
+     * Returns the line of the "(" of a call.
+     *
+     * @param  node the {@link #CALL} node
+     * @return      its line
+     */
+    int line(int node) {
+        return lines[Arrays.binarySearch(calls, 0, callCount, node)];
+    }
+
+    /**
+     * Returns the column of the "(" of a call.
+     *
+     * @param  node the {@link #CALL} node
+     * @return      its column
+     */
+    int column(int node) {
+        return columns[Arrays.binarySearch(calls, 0, callCount, node)];
+    }
+
+    /**
+     * Returns whether a node or one of its descendants has the given kind.
+     *
+     * @param  node the node
+     * @param  kind the kind
+     * @return      true if the subtree contains a node of the kind
+     */
+    boolean contains(int node, int kind) {
+        // an explicit stack of the nodes still to visit, since a tree may be deeper than the thread stack
+        int[] stack = new int[16];
+        int n = 0;
+        stack[n++] = node;
+        while (n > 0) {
+            node = stack[--n];
+            if (kinds[node] == kind) return true;
+            for (int child = firsts[node]; child >= 0; child = nexts[child]) {
+                if (n == stack.length) stack = Arrays.copyOf(stack, n * 2);
+                stack[n++] = child;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of bytes taken by the arrays of the arena, not counting the strings of the name table.
+     *
+     * @return the size of the arena in bytes
+     */
+    long bytes() {
+        return kinds.length + 20L * as.length + 4L * names.length + 12L * calls.length;
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This module holds the VM code of a class as a compact intermediate representation. Every instruction is packed
+ * into two ints of a growable array: the first holds the opcode in its low four bits and the {@link Segment} or
+ * {@link Command} ordinal, or the argument / local variable count, in the remaining bits; the second holds the
+ * operand, which is the segment index or the index of a label or function name in the constant table of the class.
+ * Names are interned, so each distinct name is stored once.
+ * <p>
+ * The code can be serialized as <code>.vm</code> text through a {@link VMWriter}, or in a binary <code>.vmb</code>
+ * format that can be loaded again without parsing text:
+ * <pre>
+ * "JVMB" version:u1 constants:varint (length:varint utf-8)* instructions:varint (word:varint operand:varint)*
+ * </pre>
+ * where a varint is an unsigned integer encoded in groups of seven bits, least significant group first.
+ *
+ * @author Maarten Derks
+ */
+class VMCode {
+
+    static final int PUSH = 0, POP = 1, ARITHMETIC = 2, LABEL = 3, GOTO = 4, IF_GOTO = 5, CALL = 6, FUNCTION = 7,
+            RETURN = 8;
+
+    private static final byte[] MAGIC = {'J', 'V', 'M', 'B'};
+    private static final int BINARY_VERSION = 1;
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final Command[] COMMANDS = Command.values();
+
+    private int[] code = new int[512];
+    private int size;
+    private String[] constants = new String[64];
+    private int constantCount;
+    private final HashMap<String, Integer> constantIndex = new HashMap<>();
+
+    /**
+     * Returns the number of instructions.
+     *
+     * @return the number of instructions
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all instructions from the given index on.
+     *
+     * @param size the new number of instructions
+     */
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Returns the opcode of the given instruction.
+     *
+     * @param  i instruction index
+     * @return   the opcode
+     */
+    int opcode(int i) {
+        return code[2 * i] & 15;
+    }
+
+    /**
+     * Returns the segment of the given <code>push</code> or <code>pop</code> instruction.
+     *
+     * @param  i instruction index
+     * @return   the segment
+     */
+    Segment segment(int i) {
+        return SEGMENTS[code[2 * i] >>> 4];
+    }
+
+    /**
+     * Returns the command of the given arithmetic-logical instruction.
+     *
+     * @param  i instruction index
+     * @return   the command
+     */
+    Command command(int i) {
+        return COMMANDS[code[2 * i] >>> 4];
+    }
+
+    /**
+     * Returns the index of the given <code>push</code> or <code>pop</code> instruction.
+     *
+     * @param  i instruction index
+     * @return   the segment index
+     */
+    int index(int i) {
+        return code[2 * i + 1];
+    }
+
+    /**
+     * Returns the label of the given <code>label</code>, <code>goto</code> or <code>if-goto</code> instruction, or the
+     * function name of the given <code>call</code> or <code>function</code> instruction.
+     *
+     * @param  i instruction index
+     * @return   the label or function name
+     */
+    String name(int i) {
+        return constants[code[2 * i + 1]];
+    }
+
+    /**
+     * Returns the argument count of the given <code>call</code> instruction, or the local variable count of the given
+     * <code>function</code> instruction.
+     *
+     * @param  i instruction index
+     * @return   the count
+     */
+    int count(int i) {
+        return code[2 * i] >>> 4;
+    }
+
+    /**
+     * Returns the number of instructions with the given opcode.
+     *
+     * @param  opcode the opcode
+     * @return        the number of instructions
+     */
+    int occurrences(int opcode) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (opcode(i) == opcode) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns whether the given range of instructions pushes a constant: <code>push constant</code> <i>n</i>,
+     * optionally followed by <code>neg</code> or <code>not</code>.
+     *
+     * @param  start index of the first instruction
+     * @param  end   index after the last instruction
+     * @return       true if the range is a constant
+     */
+    boolean isConstant(int start, int end) {
+        if (end - start < 1 || end - start > 2) return false;
+        if (opcode(start) != PUSH || segment(start) != Segment.CONSTANT) return false;
+        return end - start == 1 || opcode(start + 1) == ARITHMETIC
+                && (command(start + 1) == Command.NEG || command(start + 1) == Command.NOT);
+    }
+
+    /**
+     * Returns the value of the given range of instructions, for which {@link #isConstant} is true.
+     *
+     * @param  start index of the first instruction
+     * @param  end   index after the last instruction
+     * @return       the 16-bit value
+     */
+    int constant(int start, int end) {
+        int value = index(start);
+        if (end - start == 2) value = command(start + 1) == Command.NEG ? -value : ~value;
+        return (short) value;
+    }
+
+    void push(Segment segment, int index) {
+        add(PUSH, segment.ordinal(), index);
+    }
+
+    /**
+     * Pushes the given 16-bit value. Only 0..32767 can be pushed directly; <code>true</code> and -32768 are pushed
+     * with <code>not</code>, other negative numbers with <code>neg</code>.
+     *
+     * @param value the value
+     */
+    void pushConstant(int value) {
+        if (value >= 0) {
+            push(Segment.CONSTANT, value);
+        } else if (value == -1 || value == Short.MIN_VALUE) {
+            push(Segment.CONSTANT, ~value);
+            arithmetic(Command.NOT);
+        } else {
+            push(Segment.CONSTANT, -value);
+            arithmetic(Command.NEG);
+        }
+    }
+
+    void pop(Segment segment, int index) {
+        add(POP, segment.ordinal(), index);
+    }
+
+    void arithmetic(Command command) {
+        add(ARITHMETIC, command.ordinal(), 0);
+    }
+
+    void label(String label) {
+        add(LABEL, 0, intern(label));
+    }
+
+    void goTo(String label) {
+        add(GOTO, 0, intern(label));
+    }
+
+    void ifGoTo(String label) {
+        add(IF_GOTO, 0, intern(label));
+    }
+
+    void call(String name, int nArgs) {
+        add(CALL, nArgs, intern(name));
+    }
+
+    void function(String name, int nVars) {
+        add(FUNCTION, nVars, intern(name));
+    }
+
+    void ret() {
+        add(RETURN, 0, 0);
+    }
+
+    /**
+     * Appends a copy of the given instruction of another (or the same) class.
+     *
+     * @param from the code to copy from
+     * @param i    instruction index
+     */
+    void copy(VMCode from, int i) {
+        int word = from.code[2 * i];
+        int operand = from.code[2 * i + 1];
+        switch (word & 15) {
+            case LABEL: case GOTO: case IF_GOTO: case CALL: case FUNCTION:
+                operand = intern(from.constants[operand]);
+        }
+        add(word & 15, word >>> 4, operand);
+    }
+
+    private void add(int opcode, int arg, int operand) {
+        if (2 * size == code.length) code = Arrays.copyOf(code, code.length * 2);
+        code[2 * size] = opcode | arg << 4;
+        code[2 * size + 1] = operand;
+        size++;
+    }
+
+    private int intern(String name) {
+        Integer index = constantIndex.get(name);
+        if (index != null) return index;
+        if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = name;
+        constantIndex.put(name, constantCount);
+        return constantCount++;
+    }
+
+    /**
+     * Writes the given range of instructions as VM text.
+     *
+     * @param vmw   the writer
+     * @param start index of the first instruction
+     * @param end   index after the last instruction
+     */
+    void writeTo(VMWriter vmw, int start, int end) {
+        for (int i = start; i < end; i++) {
+            switch (opcode(i)) {
+                case PUSH: vmw.writePush(segment(i), index(i)); break;
+                case POP: vmw.writePop(segment(i), index(i)); break;
+                case ARITHMETIC: vmw.writeArithmetic(command(i)); break;
+                case LABEL: vmw.writeLabel(name(i)); break;
+                case GOTO: vmw.writeGoto(name(i)); break;
+                case IF_GOTO: vmw.writeIf(name(i)); break;
+                case CALL: vmw.writeCall(name(i), count(i)); break;
+                case FUNCTION: vmw.writeFunction(name(i), count(i)); break;
+                case RETURN: vmw.writeReturn(); break;
+            }
+        }
+    }
+
+    /**
+     * Writes all instructions as VM text.
+     *
+     * @param vmw the writer
+     */
+    void writeTo(VMWriter vmw) {
+        writeTo(vmw, 0, size);
+    }
+
+    /**
+     * Writes the code in the binary <code>.vmb</code> format. Only the constants that are used are written.
+     *
+     * @param out the output stream
+     */
+    void writeBinary(OutputStream out) throws IOException {
+        int[] renumbered = new int[constantCount];
+        Arrays.fill(renumbered, -1);
+        String[] used = new String[constantCount];
+        int usedCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (hasName(opcode(i)) && renumbered[code[2 * i + 1]] < 0) {
+                renumbered[code[2 * i + 1]] = usedCount;
+                used[usedCount++] = name(i);
+            }
+        }
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(MAGIC);
+        dos.writeByte(BINARY_VERSION);
+        writeVarint(dos, usedCount);
+        for (int c = 0; c < usedCount; c++) {
+            byte[] bytes = used[c].getBytes(StandardCharsets.UTF_8);
+            writeVarint(dos, bytes.length);
+            dos.write(bytes);
+        }
+        writeVarint(dos, size);
+        for (int i = 0; i < size; i++) {
+            writeVarint(dos, code[2 * i]);
+            writeVarint(dos, hasName(opcode(i)) ? renumbered[code[2 * i + 1]] : code[2 * i + 1]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads code in the binary <code>.vmb</code> format. Each opcode, segment and command is checked as it is read, as
+     * is each index into the constant table, so that a damaged file fails here rather than when its code is used.
+     *
+     * @param  in the input stream
+     * @return    the code
+     * @throws IOException if the input is not a <code>.vmb</code> file, is cut short, or is malformed
+     */
+    static VMCode readBinary(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || dis.readUnsignedByte() != BINARY_VERSION) {
+            throw new IOException("Not a .vmb file");
+        }
+        VMCode vmc = new VMCode();
+        int constants = readVarint(dis);
+        for (int c = 0; c < constants; c++) {
+            int length = readVarint(dis);
+            byte[] bytes = dis.readNBytes(length);
+            if (bytes.length < length) throw new EOFException();
+            if (vmc.intern(new String(bytes, StandardCharsets.UTF_8)) != c) {
+                throw new IOException("Malformed .vmb file: constant " + c + " is repeated");
+            }
+        }
+        int size = readVarint(dis);
+        for (int i = 0; i < size; i++) {
+            int word = readVarint(dis), operand = readVarint(dis);
+            int opcode = word & 15, arg = word >>> 4;
+            if (opcode > RETURN
+                    || (opcode == PUSH || opcode == POP) && (arg >= SEGMENTS.length || operand < 0)
+                    || opcode == ARITHMETIC && arg >= COMMANDS.length
+                    || hasName(opcode) && operand >= constants) {
+                throw new IOException("Malformed .vmb file: bad instruction " + i);
+            }
+            vmc.add(opcode, arg, operand);
+        }
+        return vmc;
+    }
+
+    private static boolean hasName(int opcode) {
+        return opcode >= LABEL && opcode <= FUNCTION;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~127) != 0) {
+            out.writeByte(value & 127 | 128);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            if (shift == 28 && b > 7) break;
+            value |= (b & 127) << shift;
+            if (b < 128) return value;
+        }
+        throw new IOException("Malformed .vmb file: varint out of range");
+    }
+}
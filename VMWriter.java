@@ -1,14 +1,54 @@
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 /**
  * This module features a set of simple routines for writing VM commands into the output file.
+ * <p>
+ * The commands are encoded into a byte array, which is copied into a direct byte buffer and written to a channel
+ * whenever it fills up. Command and segment names are pre-encoded, and numbers are converted to ASCII digits in
+ * place, so writing a command does not allocate. Buffers are recycled per thread.
  *
  * @author Maarten Derks
  */
 class VMWriter {
 
-    private final PrintWriter pw;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> ARRAYS = new ThreadLocal<>();
+
+    private static final byte[] NEWLINE = ascii(System.lineSeparator());
+    private static final byte[] PUSH = ascii("push "), POP = ascii("pop "), LABEL = ascii("label "),
+            GOTO = ascii("goto "), IF_GOTO = ascii("if-goto "), CALL = ascii("call "), FUNCTION = ascii("function "),
+            RETURN = ascii("return");
+    private static final byte[][] SEGMENTS = new byte[Segment.values().length][];
+    private static final byte[][] COMMANDS = new byte[Command.values().length][];
+
+    static {
+        for (Segment segment : Segment.values()) {
+            SEGMENTS[segment.ordinal()] = ascii(segment.toString().toLowerCase() + " ");
+        }
+        for (Command command : Command.values()) {
+            COMMANDS[command.ordinal()] = ascii(command.toString().toLowerCase());
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private final WritableByteChannel channel;
+    private final Appendable appendable;
+    private ByteBuffer direct;
+    private byte[] buf;
+    private int count;
 
     /**
      * Creates a new output <code>.vm</code> file / stream, and prepares it for writing.
@@ -16,7 +56,50 @@ class VMWriter {
      * @param out output file
      */
     VMWriter(File out) throws Exception {
-        pw = new PrintWriter(out);
+        this(FileChannel.open(out.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Creates a new writer that writes the VM commands to the given stream.
+     *
+     * @param out output stream
+     */
+    VMWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    /**
+     * Creates a new writer that writes the VM commands to the given channel.
+     *
+     * @param out output channel
+     */
+    VMWriter(WritableByteChannel out) {
+        this(out, null);
+    }
+
+    /**
+     * Creates a new writer that appends the VM commands to the given character sequence, such as a
+     * {@link StringBuilder} or a {@link java.io.Writer}. The sequence is not closed when the writer is closed.
+     *
+     * @param out output character sequence
+     */
+    VMWriter(Appendable out) {
+        this(null, out);
+    }
+
+    private VMWriter(WritableByteChannel channel, Appendable appendable) {
+        this.channel = channel;
+        this.appendable = appendable;
+        direct = BUFFERS.get();
+        buf = ARRAYS.get();
+        if (direct == null) {
+            direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buf = new byte[BUFFER_SIZE];
+        } else {
+            BUFFERS.remove();
+            ARRAYS.remove();
+        }
     }
 
     /**
@@ -26,7 +109,10 @@ class VMWriter {
      * @param index
      */
     void writePush(Segment segment, int index) {
-        pw.println("push " + segment.toString().toLowerCase() + " " + index);
+        put(PUSH);
+        put(SEGMENTS[segment.ordinal()]);
+        putInt(index);
+        put(NEWLINE);
     }
 
     /**
@@ -36,7 +122,10 @@ class VMWriter {
      * @param index
      */
     void writePop(Segment segment, int index) {
-        pw.println("pop " + segment.toString().toLowerCase() + " " + index);
+        put(POP);
+        put(SEGMENTS[segment.ordinal()]);
+        putInt(index);
+        put(NEWLINE);
     }
 
     /**
@@ -45,7 +134,8 @@ class VMWriter {
      * @param command
      */
     void writeArithmetic(Command command) {
-        pw.println(command.toString().toLowerCase());
+        put(COMMANDS[command.ordinal()]);
+        put(NEWLINE);
     }
 
     /**
@@ -54,7 +144,9 @@ class VMWriter {
      * @param label
      */
     void writeLabel(String label) {
-        pw.println("label " + label);
+        put(LABEL);
+        put(label);
+        put(NEWLINE);
     }
 
     /**
@@ -63,7 +155,9 @@ class VMWriter {
      * @param label
      */
     void writeGoto(String label) {
-        pw.println("goto " + label);
+        put(GOTO);
+        put(label);
+        put(NEWLINE);
     }
 
     /**
@@ -72,7 +166,9 @@ class VMWriter {
      * @param label
      */
     void writeIf(String label) {
-        pw.println("if-goto " + label);
+        put(IF_GOTO);
+        put(label);
+        put(NEWLINE);
     }
 
     /**
@@ -82,7 +178,11 @@ class VMWriter {
      * @param nVars
      */
     void writeCall(String name, int nVars) {
-        pw.println("call " + name + " " + nVars);
+        put(CALL);
+        put(name);
+        buf[count++] = ' ';
+        putInt(nVars);
+        put(NEWLINE);
     }
 
     /**
@@ -92,20 +192,83 @@ class VMWriter {
      * @param nVars
      */
     void writeFunction(String name, int nVars) {
-        pw.println("function " + name + " " + nVars);
+        put(FUNCTION);
+        put(name);
+        buf[count++] = ' ';
+        putInt(nVars);
+        put(NEWLINE);
     }
 
     /**
      * Writes a VM <code>return</code> command.
      */
     void writeReturn() {
-        pw.println("return");
+        put(RETURN);
+        put(NEWLINE);
     }
 
     /**
      * Closes the output file / stream.
      */
     void close() {
-        pw.close();
+        try {
+            flush();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            BUFFERS.set(direct);
+            ARRAYS.set(buf);
+        }
+    }
+
+    // every put leaves room for at least a space and a number, so those can be written without a check
+    private void put(byte[] bytes) {
+        if (BUFFER_SIZE - count < bytes.length + 12) flush();
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void put(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (count == BUFFER_SIZE) flush();
+            buf[count++] = (byte) s.charAt(i);
+        }
+        if (BUFFER_SIZE - count < 12) flush();
+    }
+
+    private void putInt(int value) {
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int end = count + 1;
+        for (int v = value; v >= 10; v /= 10) end++;
+        for (int i = end - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count = end;
+    }
+
+    private void flush() {
+        if (appendable != null) {
+            try {
+                for (int i = 0; i < count; i++) appendable.append((char) buf[i]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count = 0;
+            return;
+        }
+        direct.clear();
+        direct.put(buf, 0, count);
+        direct.flip();
+        try {
+            while (direct.hasRemaining()) channel.write(direct);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
     }
 }
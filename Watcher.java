@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This module keeps the compiler running and recompiles the sources of a build as they change
+ * (<code>--watch</code>). The folders of the sources are registered with a {@link WatchService}; the events of a burst,
+ * such as an editor saving several files or writing a file in several steps, are collected until no event has arrived
+ * for {@link #QUIET} milliseconds, and then handled in a single cycle. A cycle compiles only the <code>.jack</code>
+ * files that were created or whose content changed, on the same warmed-up JVM, and leaves the output of all other
+ * files alone. Files that are touched without changing are not compiled again. If the declarations of a class change,
+ * all classes are compiled again, since their calls are resolved with the {@link SignatureIndex}.
+ * <p>
+ * The result of each file is kept in memory between cycles. A build that needs the code of all classes, with
+ * <code>--whole-program</code>, <code>--inline</code> or <code>--format asm</code>, links the kept code of the
+ * unchanged classes with the new code of the changed ones, and a <code>--bundle</code> is rewritten from the kept
+ * outputs, so neither reads or compiles the unchanged sources again.
+ *
+ * @author Maarten Derks
+ */
+class Watcher {
+
+    /**
+     * The number of milliseconds without events after which a burst of events is handled.
+     */
+    static final int QUIET = 30;
+
+    private final Options options;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final SignatureIndex index = new SignatureIndex();
+
+    /**
+     * The content hash of each source file that was compiled.
+     */
+    private final Map<File, String> hashes = new HashMap<>();
+
+    /**
+     * The outcome of the last compilation of each source file, with its code or output if the build needs it later.
+     */
+    private final Map<File, JackCompiler.Result> results = new HashMap<>();
+
+    private Watcher(Options options, PrintStream out, PrintStream err) {
+        this.options = options;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Builds the sources of the given options, and then rebuilds them whenever they change, until the process is
+     * stopped.
+     *
+     * @param options the compiler options
+     * @param out     the stream for the summaries
+     * @param err     the stream for the errors
+     */
+    static void watch(Options options, PrintStream out, PrintStream err) throws IOException, InterruptedException {
+        if (options.outputDir != null) {
+            Files.createDirectories(new File(options.outputDir).toPath());
+        }
+        Watcher watcher = new Watcher(options, out, err);
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            Set<Path> folders = new LinkedHashSet<>();
+            for (String source : options.sources) {
+                File in = new File(source).getAbsoluteFile();
+                folders.add((in.isDirectory() ? in : in.getParentFile()).toPath());
+            }
+            for (Path folder : folders) {
+                folder.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            List<File> files = watcher.files();
+            watcher.cycle(files, new HashSet<>(files));
+            out.println("Watching " + files.size() + " file" + (files.size() == 1 ? "" : "s") + " for changes");
+            while (true) {
+                Set<File> changed = new HashSet<>();
+                boolean overflow = false;
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+                for (; key != null; key = service.poll(QUIET, TimeUnit.MILLISECONDS)) {
+                    Path folder = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add(folder.resolve((Path) event.context()).toFile());
+                        }
+                    }
+                    key.reset();
+                }
+                files = watcher.files();
+                watcher.cycle(files, overflow ? new HashSet<>(files) : changed);
+            }
+        }
+    }
+
+    /**
+     * Returns the source files of the build as they are now, leaving out sources that no longer exist. The files are
+     * absolute, like those of the events, which are resolved against the absolute folders that are watched.
+     */
+    private List<File> files() {
+        List<File> files = new ArrayList<>();
+        for (String source : options.sources) {
+            try {
+                for (File f : JackCompiler.sourceFiles(source)) {
+                    files.add(f.getAbsoluteFile());
+                }
+            } catch (IllegalArgumentException e) {
+                err.println(e.getMessage());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Compiles the source files that changed, or that have not been compiled yet, or all files if a declaration
+     * changed, and links or bundles the whole program if the build needs it.
+     *
+     * @param files   the source files of the build
+     * @param changed the files that may have changed since the last cycle; may include other files
+     */
+    private void cycle(List<File> files, Set<File> changed) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        boolean removed = results.keySet().retainAll(files);
+        hashes.keySet().retainAll(files);
+        List<File> stale = new ArrayList<>();
+        for (File f : files) {
+            if (!changed.contains(f) && results.containsKey(f)) continue;
+            try {
+                String hash = BuildManifest.hash(Files.readAllBytes(f.toPath()));
+                if (hash.equals(hashes.put(f, hash)) && results.containsKey(f)) continue;
+            } catch (IOException e) {
+                // deleted while listing, or not readable yet; compile reports it
+                hashes.remove(f);
+            }
+            stale.add(f);
+        }
+        if (stale.isEmpty() && !removed) return;
+
+        String signatures = index.fingerprint();
+        index.retain(new HashSet<>(files));
+        index.update(stale, options);
+        if (!index.fingerprint().equals(signatures)) {
+            // the calls of any class may resolve differently
+            stale = files;
+        }
+        Map<File, BuildManifest> manifests = JackCompiler.manifests(stale, options, index);
+        List<JackCompiler.Result> compiled = JackCompiler.compile(stale, options, manifests, index);
+        Map<File, JackCompiler.Result> fresh = new HashMap<>();
+        for (JackCompiler.Result result : compiled) {
+            results.put(result.file, copy(result));
+            fresh.put(result.file, result);
+        }
+        List<JackCompiler.Result> reported = compiled;
+        if (options.linked() || options.bundle != null) {
+            List<JackCompiler.Result> program = new ArrayList<>();
+            for (File f : files) {
+                JackCompiler.Result result = fresh.get(f);
+                program.add(result != null ? result : copy(results.get(f)));
+            }
+            try {
+                if (options.linked()) {
+                    JackCompiler.link(program, options);
+                    reported = program;
+                }
+                if (options.bundle != null && !options.format.equals("asm")) {
+                    JackCompiler.bundle(program, options);
+                }
+            } catch (IllegalArgumentException e) {
+                err.println(e.getMessage());
+            }
+        }
+        for (BuildManifest manifest : manifests.values()) {
+            manifest.save();
+        }
+        index.save();
+        JackCompiler.report(reported, options, out, err);
+        out.println("Compiled " + stale.size() + " of " + files.size() + " file" + (files.size() == 1 ? "" : "s")
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Returns a new result of the same file with the error, code and output of the given result, which linking and
+     * bundling do not change.
+     */
+    private static JackCompiler.Result copy(JackCompiler.Result result) {
+        JackCompiler.Result copy = new JackCompiler.Result(result.file);
+        copy.error = result.error;
+        copy.code = result.code;
+        copy.output = result.output;
+        return copy;
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Measures the two passes of the <code>--ast</code> pipeline separately, in source lines per second: parsing with the
+ * {@link JackParser} into a {@link SyntaxTree}, and generating code from the trees with the {@link CodeGenerator}.
+ * Afterwards, the size of the arena per source line, and the number of bytes allocated per source line by each pass
+ * and by the single-pass {@link CompilationEngine}, are reported.
+ * <p>
+ * <b>Usage:</b> <code>java AstBenchmark</code> [<i>source</i>]
+ *
+ * @author Maarten Derks
+ */
+class AstBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        List<File> files = Harness.corpus(args);
+        long lines = 0;
+        for (File f : files) lines += Files.readAllLines(f.toPath()).size();
+        long totalLines = lines;
+        Options options = new Options();
+        SyntaxTree[] trees = parse(files);
+
+        Harness.run("JackParser", "lines", () -> {
+            parse(files);
+            return totalLines;
+        });
+        Harness.run("CodeGenerator", "lines", () -> {
+            for (SyntaxTree tree : trees) new CodeGenerator(tree, options).generate();
+            return totalLines;
+        });
+
+        long arena = 0;
+        for (SyntaxTree tree : trees) arena += tree.bytes();
+        System.out.printf("%-28s %,14.2f bytes/line%n", "SyntaxTree arena", (double) arena / lines);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        parse(files);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("%-28s %,14.2f bytes/line%n", "JackParser allocation", (double) allocated / lines);
+
+        before = threads.getCurrentThreadAllocatedBytes();
+        for (SyntaxTree tree : trees) new CodeGenerator(tree, options).generate();
+        allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("%-28s %,14.2f bytes/line%n", "CodeGenerator allocation", (double) allocated / lines);
+
+        before = threads.getCurrentThreadAllocatedBytes();
+        for (File f : files) new CompilationEngine(new JackTokenizer(f), options).compileClass();
+        allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("%-28s %,14.2f bytes/line%n", "CompilationEngine allocation", (double) allocated / lines);
+    }
+
+    private static SyntaxTree[] parse(List<File> files) throws Exception {
+        SyntaxTree[] trees = new SyntaxTree[files.size()];
+        for (int i = 0; i < trees.length; i++) trees[i] = new JackParser(new JackTokenizer(files.get(i))).parseClass();
+        return trees;
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Measures the end-to-end throughput of {@link CompilationEngine#compileClass()}, in source lines per second. The
+ * generated VM code is discarded, so the numbers do not include file output.
+ * <p>
+ * <b>Usage:</b> <code>java CompileBenchmark</code> [<i>source</i>]
+ *
+ * @author Maarten Derks
+ */
+class CompileBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        List<File> files = Harness.corpus(args);
+        long lines = 0;
+        for (File f : files) lines += Files.readAllLines(f.toPath()).size();
+        long totalLines = lines;
+        Harness.run("CompilationEngine", "lines", () -> {
+            for (File f : files) {
+                new CompilationEngine(f, OutputStream.nullOutputStream()).compileClass();
+            }
+            return totalLines;
+        });
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * This module generates a synthetic corpus of Jack classes for the benchmarks. The output only depends on the
+ * parameters and the seed, so benchmark results can be compared between runs and between machines.
+ * <p>
+ * <b>Usage:</b> <code>java CorpusGenerator</code> <i>dir</i> [<code>--classes</code> <i>n</i>]
+ * [<code>--subroutines</code> <i>n</i>] [<code>--statements</code> <i>n</i>] [<code>--depth</code> <i>n</i>]
+ * [<code>--locals</code> <i>n</i>] [<code>--fields</code> <i>n</i>] [<code>--string-length</code> <i>n</i>]
+ * [<code>--seed</code> <i>n</i>]
+ *
+ * @author Maarten Derks
+ */
+class CorpusGenerator {
+
+    int classes = 100;
+    int subroutines = 8;
+    int statements = 20;
+    int depth = 4;
+    int locals = 8;
+    int fields = 8;
+    int stringLength = 24;
+    long seed = 42;
+
+    private Random random;
+    private StringBuilder sb;
+    private int level;
+
+    public static void main(String[] args) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator();
+        for (int i = 1; i < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--classes": generator.classes = value; break;
+                case "--subroutines": generator.subroutines = value; break;
+                case "--statements": generator.statements = value; break;
+                case "--depth": generator.depth = value; break;
+                case "--locals": generator.locals = value; break;
+                case "--fields": generator.fields = value; break;
+                case "--string-length": generator.stringLength = value; break;
+                case "--seed": generator.seed = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        generator.generate(new File(args[0]));
+    }
+
+    /**
+     * Writes the classes <code>Gen0</code> ... <code>Gen</code><i>n-1</i> into the given folder.
+     *
+     * @param dir output folder
+     */
+    void generate(File dir) throws IOException {
+        Files.createDirectories(dir.toPath());
+        random = new Random(seed);
+        for (int i = 0; i < classes; i++) {
+            Files.write(new File(dir, "Gen" + i + ".jack").toPath(),
+                    generateClass("Gen" + i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns the source of a single class.
+     *
+     * @param  name the class name
+     * @return      the source
+     */
+    String generateClass(String name) {
+        if (random == null) random = new Random(seed);
+        sb = new StringBuilder();
+        line(0, "/** Generated class " + name + ". */");
+        line(0, "class " + name + " {");
+        for (int i = 0; i < fields; i++) line(1, "field int f" + i + ";");
+        line(1, "static int s0, s1;");
+        line(0, "");
+        line(1, "constructor " + name + " new() {");
+        for (int i = 0; i < fields; i++) line(2, "let f" + i + " = " + i + ";");
+        line(2, "return this;");
+        line(1, "}");
+        for (int m = 0; m < subroutines; m++) {
+            line(0, "");
+            line(1, "// subroutine " + m);
+            line(1, "method int m" + m + "(int a0, int a1) {");
+            StringBuilder vars = new StringBuilder("var int l0");
+            for (int i = 1; i < locals; i++) vars.append(", l").append(i);
+            line(2, vars.append(";").toString());
+            line(2, "var Array arr;");
+            line(2, "var String str;");
+            line(2, "let arr = Array.new(" + locals + ");");
+            for (int i = 0; i < statements; i++) statement(2, m);
+            line(2, "do arr.dispose();");
+            line(2, "return " + expression(depth) + ";");
+            line(1, "}");
+        }
+        line(0, "");
+        line(1, "function void main() {");
+        line(2, "var " + name + " g;");
+        line(2, "let g = " + name + ".new();");
+        for (int m = 0; m < subroutines; m++) line(2, "do g.m" + m + "(" + m + ", 1);");
+        line(2, "return;");
+        line(1, "}");
+        line(0, "}");
+        return sb.toString();
+    }
+
+    private void statement(int indent, int method) {
+        switch (level < 2 ? random.nextInt(7) : random.nextInt(4)) {
+            case 0:
+                line(indent, "let l" + random.nextInt(locals) + " = " + expression(depth) + ";");
+                break;
+            case 1:
+                line(indent, "let arr[" + expression(1) + "] = " + expression(depth) + ";");
+                break;
+            case 2:
+                line(indent, "let str = \"" + string() + "\";");
+                break;
+            case 3:
+                line(indent, method > 0 ? "do m" + random.nextInt(method) + "(" + expression(2) + ", a0);"
+                        : "do Output.printInt(" + expression(depth) + ");");
+                break;
+            case 4:
+                level++;
+                line(indent, "if (" + expression(depth) + ") {");
+                statement(indent + 1, method);
+                line(indent, "} else {");
+                statement(indent + 1, method);
+                line(indent, "}");
+                level--;
+                break;
+            default:
+                level++;
+                String counter = "l" + random.nextInt(locals);
+                line(indent, "let " + counter + " = 0;");
+                line(indent, "while (" + counter + " < " + (1 + random.nextInt(20)) + ") {");
+                statement(indent + 1, method);
+                line(indent + 1, "let " + counter + " = " + counter + " + 1;");
+                line(indent, "}");
+                level--;
+        }
+    }
+
+    private String expression(int depth) {
+        StringBuilder e = new StringBuilder(term(depth));
+        int terms = depth > 0 ? random.nextInt(3) : 0;
+        for (int i = 0; i < terms; i++) {
+            e.append(' ').append("+-*/&|<>=".charAt(random.nextInt(9))).append(' ').append(term(depth));
+        }
+        return e.toString();
+    }
+
+    private String term(int depth) {
+        switch (depth > 0 ? random.nextInt(10) : random.nextInt(4)) {
+            case 0: return String.valueOf(random.nextInt(32768));
+            case 1: return "l" + random.nextInt(locals);
+            case 2: return "f" + random.nextInt(fields);
+            case 3: return random.nextBoolean() ? "a" + random.nextInt(2) : "s" + random.nextInt(2);
+            case 4: return "arr[" + term(0) + "]";
+            case 5: return "-" + term(depth - 1);
+            case 6: return "~(" + expression(depth - 1) + ")";
+            case 7: return "Math.abs(" + expression(depth - 1) + ")";
+            default: return "(" + expression(depth - 1) + ")";
+        }
+    }
+
+    private String string() {
+        StringBuilder s = new StringBuilder(stringLength);
+        String alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.,:!?";
+        for (int i = 0; i < stringLength; i++) s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return s.toString();
+    }
+
+    private void line(int indent, String text) {
+        for (int i = 0; i < indent; i++) sb.append("    ");
+        sb.append(text).append('\n');
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.StringReader;
+
+/**
+ * Measures {@link CompilationEngine#compileClass()} on pathological expressions, as produced by code generators, in
+ * tokens per second. Each shape is a single <code>let</code> statement whose expression nests or chains
+ * <i>depth</i> times:
+ * <ul>
+ *     <li><code>chain</code>: <code>x + x + ... + x</code></li>
+ *     <li><code>parentheses</code>: <code>((...(x)...))</code></li>
+ *     <li><code>right</code>: <code>x + (x + (... + x))</code></li>
+ *     <li><code>unary</code>: <code>- ~ - ~ ... x</code></li>
+ *     <li><code>calls</code>: <code>Main.f(Main.f(...(x)...))</code></li>
+ *     <li><code>arrays</code>: <code>a[a[...a[x]...]]</code></li>
+ * </ul>
+ * The shapes nest far deeper than hand-written code; the engine compiles them without deep recursion, so they need
+ * no larger thread stack.
+ * <p>
+ * <b>Usage:</b> <code>java ExpressionBenchmark</code> [<i>depth</i>]
+ *
+ * @author Maarten Derks
+ */
+class ExpressionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        String[][] shapes = {
+                {"chain", "", "x", " + x", ""},
+                {"parentheses", "(", "x", "", ")"},
+                {"right", "x + (", "x", "", ")"},
+                {"unary", "- ~ ", "x", "", ""},
+                {"calls", "Main.f(", "x", "", ")"},
+                {"arrays", "a[", "x", "", "]"},
+        };
+        for (String[] shape : shapes) {
+            String source = source(shape, depth);
+            Harness.run("expression " + shape[0], "tokens", () -> {
+                JackTokenizer jt = new JackTokenizer(new StringReader(source));
+                new CompilationEngine(jt).compileClass();
+                return jt.tokenCount();
+            });
+        }
+    }
+
+    /**
+     * Returns a class with a single expression of the given shape: the prefix, the innermost term, the suffix of each
+     * step, and the closing text of each step.
+     */
+    private static String source(String[] shape, int depth) {
+        StringBuilder sb = new StringBuilder("class Main {\n"
+                + "    function int f(int x) { return x; }\n"
+                + "    function void main() {\n"
+                + "        var int x;\n"
+                + "        var Array a;\n"
+                + "        let x = ");
+        for (int i = 0; i < depth; i++) sb.append(shape[1]);
+        sb.append(shape[2]);
+        for (int i = 0; i < depth; i++) sb.append(shape[3]).append(shape[4]);
+        sb.append(";\n        return;\n    }\n}\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal benchmark harness. Each benchmark is a workload that returns the number of units (tokens, lines,
+ * instructions, ...) it processed. The harness runs the workload for a number of warm-up iterations, which are not
+ * reported, and then for a number of measured iterations, and prints the median, minimum and maximum throughput.
+ * <p>
+ * The number of iterations can be set with the system properties <code>bench.warmups</code> and
+ * <code>bench.iterations</code>. Benchmarks that need Jack sources use the folder given as first argument, or a
+ * corpus generated by the {@link CorpusGenerator} with its default parameters.
+ *
+ * @author Maarten Derks
+ */
+class Harness {
+
+    interface Workload {
+        long run() throws Exception;
+    }
+
+    private static volatile long blackhole;
+
+    /**
+     * Runs and reports a benchmark.
+     *
+     * @param name     the name of the benchmark
+     * @param unit     the unit of the numbers returned by the workload
+     * @param workload the workload
+     */
+    static void run(String name, String unit, Workload workload) throws Exception {
+        int warmups = Integer.getInteger("bench.warmups", 10);
+        int iterations = Integer.getInteger("bench.iterations", 10);
+        long sink = 0;
+        for (int i = 0; i < warmups; i++) {
+            sink += workload.run();
+        }
+        double[] rates = new double[iterations];
+        long units = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            units = workload.run();
+            rates[i] = units * 1e9 / (System.nanoTime() - start);
+            sink += units;
+        }
+        blackhole = sink;
+        Arrays.sort(rates);
+        System.out.printf("%-28s %,14.0f %s/s  (min %,.0f, max %,.0f, %,d %s per op, %d iterations)%n", name,
+                rates[iterations / 2], unit, rates[0], rates[iterations - 1], units, unit, iterations);
+    }
+
+    /**
+     * Returns the <code>.jack</code> files to benchmark: those of the folder given as first argument, or those of a
+     * generated corpus.
+     *
+     * @param  args the command-line arguments of the benchmark
+     * @return      the files
+     */
+    static List<File> corpus(String[] args) throws Exception {
+        File dir;
+        if (args.length > 0) {
+            dir = new File(args[0]);
+        } else {
+            dir = Files.createTempDirectory("jack-corpus").toFile();
+            dir.deleteOnExit();
+            new CorpusGenerator().generate(dir);
+            for (File f : dir.listFiles()) f.deleteOnExit();
+        }
+        List<File> files = new ArrayList<>();
+        if (dir.isFile()) {
+            files.add(dir);
+        } else {
+            files.addAll(Arrays.asList(dir.listFiles((d, name) -> name.endsWith(".jack"))));
+            files.sort(null);
+        }
+        return files;
+    }
+}
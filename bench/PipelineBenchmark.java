@@ -0,0 +1,50 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+/**
+ * Measures how long it takes to compile a single large class, serially and in a {@link Pipeline}, without and with
+ * <code>-O</code>, in source lines per second. The class is lexed, compiled and encoded as VM text; the output is
+ * discarded. Without a <i>source</i>, a class of 3000 subroutines is generated by the {@link CorpusGenerator}.
+ * <p>
+ * <b>Usage:</b> <code>java PipelineBenchmark</code> [<i>source</i>]
+ *
+ * @author Maarten Derks
+ */
+class PipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        File f;
+        if (args.length > 0) {
+            f = new File(args[0]);
+        } else {
+            CorpusGenerator generator = new CorpusGenerator();
+            generator.subroutines = 3000;
+            f = File.createTempFile("Big", ".jack");
+            f.deleteOnExit();
+            Files.writeString(f.toPath(), generator.generateClass(f.getName().replace(".jack", "")));
+        }
+        long lines = Files.readAllLines(f.toPath()).size();
+        Options options = new Options();
+        Options optimize = new Options();
+        optimize.optimize = true;
+
+        Harness.run("Serial", "lines", () -> serial(f, options, lines));
+        Harness.run("Pipeline", "lines", () -> pipeline(f, options, lines));
+        Harness.run("Serial -O", "lines", () -> serial(f, optimize, lines));
+        Harness.run("Pipeline -O", "lines", () -> pipeline(f, optimize, lines));
+    }
+
+    private static long serial(File f, Options options, long lines) throws Exception {
+        VMCode code = JackCompiler.translate(new JackTokenizer(f), options, null, null);
+        JackCompiler.write(code, options, Channels.newChannel(OutputStream.nullOutputStream()));
+        return lines;
+    }
+
+    private static long pipeline(File f, Options options, long lines) throws Exception {
+        Pipeline.compile(new JackTokenizer(f), options, Channels.newChannel(OutputStream.nullOutputStream()), null,
+                null);
+        return lines;
+    }
+}
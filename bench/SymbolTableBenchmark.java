@@ -0,0 +1,66 @@
+/**
+ * Measures {@link SymbolTable} definitions and lookups, in operations per second, for a class with hundreds of
+ * fields and subroutines with many locals. Lookups are measured both per scope, with {@link SymbolTable#kindOf} and
+ * {@link SymbolTable#indexOf}, and over both scopes at once, with {@link SymbolTable#lookup}.
+ * <p>
+ * <b>Usage:</b> <code>java SymbolTableBenchmark</code> [<i>fields</i> [<i>locals</i>]]
+ *
+ * @author Maarten Derks
+ */
+class SymbolTableBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fields = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int locals = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        String[] fieldNames = names("field", fields);
+        String[] localNames = names("local", locals);
+        int subroutines = 100, lookups = 1000;
+
+        Harness.run("SymbolTable.define", "symbols", () -> {
+            SymbolTable cst = new SymbolTable(), sst = new SymbolTable();
+            for (String name : fieldNames) cst.define(name, "int", Kind.FIELD);
+            for (int s = 0; s < subroutines; s++) {
+                sst.reset();
+                for (String name : localNames) sst.define(name, "int", Kind.VAR);
+            }
+            return fields + (long) subroutines * locals;
+        });
+
+        SymbolTable cst = new SymbolTable(), sst = new SymbolTable();
+        for (String name : fieldNames) cst.define(name, "int", Kind.FIELD);
+        for (String name : localNames) sst.define(name, "int", Kind.VAR);
+        Harness.run("SymbolTable.lookup", "lookups", () -> {
+            long sum = 0;
+            for (int i = 0; i < lookups; i++) {
+                // resolve a local and a field, the way the compilation engine resolves identifiers in a term
+                String local = localNames[i % locals], field = fieldNames[i % fields];
+                if (sst.kindOf(local) != Kind.NONE) sum += sst.indexOf(local);
+                if (sst.kindOf(field) == Kind.NONE && cst.kindOf(field) != Kind.NONE) sum += cst.indexOf(field);
+            }
+            return sum >= 0 ? 2L * lookups : 0;
+        });
+
+        SymbolTable scope = new SymbolTable(cst);
+        for (String name : localNames) scope.define(name, "int", Kind.VAR);
+        Harness.run("SymbolTable.combinedLookup", "lookups", () -> {
+            long sum = 0;
+            for (int i = 0; i < lookups; i++) {
+                // the same identifiers, each resolved in a single call over both scopes
+                sum += scope.lookup(localNames[i % locals]) + scope.lookup(fieldNames[i % fields]);
+            }
+            return sum >= 0 ? 2L * lookups : 0;
+        });
+
+        Harness.run("SymbolTable.varCount", "calls", () -> {
+            long sum = 0;
+            for (int i = 0; i < lookups; i++) sum += cst.varCount(Kind.FIELD) + sst.varCount(Kind.VAR);
+            return sum >= 0 ? 2L * lookups : 0;
+        });
+    }
+
+    private static String[] names(String prefix, int n) {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) names[i] = prefix + i;
+        return names;
+    }
+}
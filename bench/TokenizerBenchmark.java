@@ -0,0 +1,28 @@
+import java.io.File;
+import java.util.List;
+
+/**
+ * Measures the throughput of the {@link JackTokenizer}, in tokens per second.
+ * <p>
+ * <b>Usage:</b> <code>java TokenizerBenchmark</code> [<i>source</i>], where <i>source</i> is a <code>.jack</code>
+ * file or a folder containing such files. Without a source, a generated corpus is used (see {@link Harness}).
+ *
+ * @author Maarten Derks
+ */
+class TokenizerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        List<File> files = Harness.corpus(args);
+        Harness.run("JackTokenizer", "tokens", () -> {
+            long tokens = 0;
+            for (File f : files) {
+                JackTokenizer jt = new JackTokenizer(f);
+                while (jt.hasMoreTokens()) {
+                    jt.advance();
+                    if (jt.tokenType() != null) tokens++;
+                }
+            }
+            return tokens;
+        });
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the throughput of the {@link VMWriter}, in VM instructions per second, for an instruction mix that is
+ * typical of compiled Jack code, including the long <code>push constant</code> / <code>call String.appendChar</code>
+ * sequences of string constants. The output is discarded. Afterwards, the number of bytes allocated per instruction
+ * is reported.
+ * <p>
+ * <b>Usage:</b> <code>java VMWriterBenchmark</code>
+ *
+ * @author Maarten Derks
+ */
+class VMWriterBenchmark {
+
+    private static final String[] FUNCTIONS = new String[1000];
+    private static final String[] LOOP_LABELS = new String[20];
+    private static final String[] END_LABELS = new String[20];
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < FUNCTIONS.length; i++) FUNCTIONS[i] = "Bench.f" + i;
+        for (int i = 0; i < LOOP_LABELS.length; i++) {
+            LOOP_LABELS[i] = "WHILE_EXP" + i;
+            END_LABELS[i] = "WHILE_END" + i;
+        }
+        Harness.run("VMWriter", "instructions", VMWriterBenchmark::write);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        long instructions = write();
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("%-28s %,14.2f bytes/instruction%n", "VMWriter allocation", (double) allocated / instructions);
+    }
+
+    private static long write() {
+        VMWriter vmw = new VMWriter(OutputStream.nullOutputStream());
+        long instructions = 0;
+        for (String function : FUNCTIONS) {
+            vmw.writeFunction(function, 4);
+            for (int i = 0; i < LOOP_LABELS.length; i++) {
+                vmw.writePush(Segment.LOCAL, i & 3);
+                vmw.writePush(Segment.CONSTANT, i * 37);
+                vmw.writeArithmetic(Command.ADD);
+                vmw.writePop(Segment.THIS, i & 7);
+                vmw.writeLabel(LOOP_LABELS[i]);
+                vmw.writeIf(END_LABELS[i]);
+                vmw.writePush(Segment.CONSTANT, 'a' + i);
+                vmw.writeCall("String.appendChar", 2);
+                vmw.writeGoto(LOOP_LABELS[i]);
+                instructions += 9;
+            }
+            vmw.writeReturn();
+            instructions += 2;
+        }
+        vmw.close();
+        return instructions;
+    }
+}
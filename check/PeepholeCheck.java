@@ -0,0 +1,160 @@
+/**
+ * Checks the rules of the {@link PeepholeOptimizer}. Each case applies a single rule to the end of a short VM code
+ * sequence, as the optimizer does after appending an instruction, and compares the result with the expected sequence.
+ * For each rule there are cases where it must rewrite the code and at least one case where it must leave the code
+ * alone. A few cases run the whole optimizer. Prints each failing case and exits with status 1 if any case fails.
+ * <p>
+ * Sequences are written as VM commands separated by <code>;</code>, e.g. <code>push local 0; not; if-goto L</code>.
+ * <p>
+ * <b>Usage:</b> <code>java PeepholeCheck</code>
+ *
+ * @author Maarten Derks
+ */
+class PeepholeCheck {
+
+    private static int cases, failures;
+
+    public static void main(String[] args) {
+        rule("DOUBLE_NEGATION", PeepholeOptimizer.DOUBLE_NEGATION, "push local 0; not; not", "push local 0");
+        rule("DOUBLE_NEGATION", PeepholeOptimizer.DOUBLE_NEGATION, "push local 0; neg; neg", "push local 0");
+        rule("DOUBLE_NEGATION", PeepholeOptimizer.DOUBLE_NEGATION, "push local 0; neg; not", null);
+        rule("DOUBLE_NEGATION", PeepholeOptimizer.DOUBLE_NEGATION, "push local 0; not; neg", null);
+
+        rule("PUSH_POP", PeepholeOptimizer.PUSH_POP, "push constant 1; push local 1; pop local 1", "push constant 1");
+        rule("PUSH_POP", PeepholeOptimizer.PUSH_POP, "push local 1; pop local 2", null);
+        rule("PUSH_POP", PeepholeOptimizer.PUSH_POP, "push local 1; pop argument 1", null);
+
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push local 0; push constant 0; add",
+                "push local 0");
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push local 0; push constant 0; sub",
+                "push local 0");
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push local 0; push constant 0; or", "push local 0");
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push constant 0; neg", "push constant 0");
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push local 0; push constant 0; and", null);
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push local 0; push constant 1; add", null);
+        rule("NEUTRAL_OPERAND", PeepholeOptimizer.NEUTRAL_OPERAND, "push local 0; push constant 0; eq", null);
+
+        rule("CONSTANT_CONDITION", PeepholeOptimizer.CONSTANT_CONDITION, "push constant 0; if-goto L", "");
+        rule("CONSTANT_CONDITION", PeepholeOptimizer.CONSTANT_CONDITION, "push constant 0; not; if-goto L", "goto L");
+        rule("CONSTANT_CONDITION", PeepholeOptimizer.CONSTANT_CONDITION, "push constant 1; if-goto L", null);
+        rule("CONSTANT_CONDITION", PeepholeOptimizer.CONSTANT_CONDITION, "push local 0; not; if-goto L", null);
+
+        rule("NEGATED_BRANCH", PeepholeOptimizer.NEGATED_BRANCH,
+                "push local 0; push constant 1; eq; not; if-goto A; goto B; label A",
+                "push local 0; push constant 1; eq; if-goto B; label A");
+        rule("NEGATED_BRANCH", PeepholeOptimizer.NEGATED_BRANCH,
+                "push local 0; push constant 1; lt; not; if-goto A; goto B; label A",
+                "push local 0; push constant 1; lt; if-goto B; label A");
+        // not is bitwise: ~2 is true, and so is 2
+        rule("NEGATED_BRANCH", PeepholeOptimizer.NEGATED_BRANCH,
+                "push local 0; not; if-goto A; goto B; label A", null);
+        rule("NEGATED_BRANCH", PeepholeOptimizer.NEGATED_BRANCH,
+                "push local 0; push local 1; and; not; if-goto A; goto B; label A", null);
+        rule("NEGATED_BRANCH", PeepholeOptimizer.NEGATED_BRANCH,
+                "push local 0; push constant 1; eq; not; if-goto A; goto B; label C", null);
+
+        rule("JUMP_TO_NEXT", PeepholeOptimizer.JUMP_TO_NEXT, "push local 0; goto L; label L", "push local 0; label L");
+        rule("JUMP_TO_NEXT", PeepholeOptimizer.JUMP_TO_NEXT, "goto L; label M", null);
+        rule("JUMP_TO_NEXT", PeepholeOptimizer.JUMP_TO_NEXT, "if-goto L; label L", null);
+
+        rule("UNREACHABLE", PeepholeOptimizer.UNREACHABLE, "goto L; push constant 1", "goto L");
+        rule("UNREACHABLE", PeepholeOptimizer.UNREACHABLE, "return; call Main.f 0", "return");
+        rule("UNREACHABLE", PeepholeOptimizer.UNREACHABLE, "goto L; label M", null);
+        rule("UNREACHABLE", PeepholeOptimizer.UNREACHABLE, "return; function Main.g 0", null);
+        rule("UNREACHABLE", PeepholeOptimizer.UNREACHABLE, "if-goto L; push constant 1", null);
+
+        optimize("function Main.f 0; push constant 0; not; not; if-goto L; push constant 0; return; label L;"
+                + " push constant 1; return", "function Main.f 0; push constant 0; return");
+        optimize("function Main.f 0; push argument 0; push constant 2; gt; not; if-goto A; goto B; label A;"
+                + " push constant 0; return; label B; push constant 1; return",
+                "function Main.f 0; push argument 0; push constant 2; gt; if-goto B; push constant 0; return;"
+                + " label B; push constant 1; return");
+        optimize("function Main.f 0; push argument 0; not; if-goto A; goto B; label A; push constant 0; return;"
+                + " label B; push constant 1; return",
+                "function Main.f 0; push argument 0; not; if-goto A; goto B; label A; push constant 0; return;"
+                + " label B; push constant 1; return");
+
+        System.out.println(cases - failures + " of " + cases + " cases passed");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Checks a single rule on the end of the given code.
+     *
+     * @param name     the name of the rule
+     * @param rule     the rule
+     * @param input    the code
+     * @param expected the code after the rule, or <code>null</code> if the rule must not apply
+     */
+    private static void rule(String name, PeepholeOptimizer.Rule rule, String input, String expected) {
+        VMCode code = parse(input);
+        boolean applied = rule.apply(code);
+        String actual = text(code);
+        String wanted = expected != null ? text(parse(expected)) : text(parse(input));
+        check(name + ": " + input, applied == (expected != null) && actual.equals(wanted),
+                expected != null ? "rewrites to " + expected : "does not apply", (applied ? "" : "not applied, ")
+                        + actual.replace("\n", "; "));
+    }
+
+    /**
+     * Checks the whole optimizer with its default rules on the given code.
+     */
+    private static void optimize(String input, String expected) {
+        String actual = text(new PeepholeOptimizer().optimize(parse(input)));
+        check("optimize: " + input, actual.equals(text(parse(expected))), expected, actual.replace("\n", "; "));
+    }
+
+    private static void check(String name, boolean ok, String expected, String actual) {
+        cases++;
+        if (ok) return;
+        failures++;
+        System.out.println("FAIL " + name + "\n  expected: " + expected + "\n  actual:   " + actual);
+    }
+
+    private static VMCode parse(String text) {
+        VMCode code = new VMCode();
+        for (String command : text.split(";")) {
+            String[] words = command.trim().split(" ");
+            switch (words[0]) {
+                case "":
+                    break;
+                case "push":
+                    code.push(Segment.valueOf(words[1].toUpperCase()), Integer.parseInt(words[2]));
+                    break;
+                case "pop":
+                    code.pop(Segment.valueOf(words[1].toUpperCase()), Integer.parseInt(words[2]));
+                    break;
+                case "label":
+                    code.label(words[1]);
+                    break;
+                case "goto":
+                    code.goTo(words[1]);
+                    break;
+                case "if-goto":
+                    code.ifGoTo(words[1]);
+                    break;
+                case "call":
+                    code.call(words[1], Integer.parseInt(words[2]));
+                    break;
+                case "function":
+                    code.function(words[1], Integer.parseInt(words[2]));
+                    break;
+                case "return":
+                    code.ret();
+                    break;
+                default:
+                    code.arithmetic(Command.valueOf(words[0].toUpperCase()));
+            }
+        }
+        return code;
+    }
+
+    private static String text(VMCode code) {
+        StringBuilder sb = new StringBuilder();
+        VMWriter vmw = new VMWriter(sb);
+        code.writeTo(vmw);
+        vmw.close();
+        return sb.toString().trim();
+    }
+
+}
@@ -0,0 +1,118 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Checks that <code>--watch</code> recompiles a class that is edited under a relative source path. A folder with two
+ * classes is created in the current folder, the {@link Watcher} is started on its relative path, once with the output
+ * next to the sources and once with a relative output folder, and one class is edited after the first build. The
+ * check passes if the output of the edited class changes, and that of the other class does not. Prints each failing
+ * case and the output of the watcher, and exits with status 1 if any case fails.
+ * <p>
+ * <b>Usage:</b> <code>java WatchCheck</code>
+ *
+ * @author Maarten Derks
+ */
+class WatchCheck {
+
+    /**
+     * The number of milliseconds to wait for a build.
+     */
+    private static final int TIMEOUT = 10_000;
+
+    private static int cases, failures;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory(Paths.get(""), "watch-check");
+        try {
+            watch(dir, null);
+            watch(dir, dir.resolve("out").toString());
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        System.out.println(cases - failures + " of " + cases + " cases passed");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Watches a new source folder under the given folder, edits one of its classes, and checks the outputs.
+     *
+     * @param dir       the relative folder to create the sources in
+     * @param outputDir the relative output folder, or <code>null</code> for the output next to the sources
+     */
+    private static void watch(Path dir, String outputDir) throws Exception {
+        Path src = Files.createTempDirectory(dir, "src");
+        Path main = src.resolve("Main.jack"), point = src.resolve("Point.jack");
+        write(main, "class Main { function void main() { do Point.f(); return; } }");
+        write(point, "class Point { function int f() { return 1; } }");
+        Path out = outputDir != null ? Paths.get(outputDir) : src;
+        Path mainVm = out.resolve("Main.vm"), pointVm = out.resolve("Point.vm");
+
+        Options options = Options.parse(outputDir != null
+                ? new String[] {"--watch", "-d", outputDir, src.toString()}
+                : new String[] {"--watch", src.toString()});
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(log, true, StandardCharsets.UTF_8);
+        Thread watcher = new Thread(() -> {
+            try {
+                Watcher.watch(options, ps, ps);
+            } catch (IOException | InterruptedException e) {
+                ps.println(e);
+            }
+        }, "watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        String name = "--watch " + (outputDir != null ? "-d " + outputDir + " " : "") + src;
+        boolean built = await(() -> log.toString(StandardCharsets.UTF_8).contains("Watching"));
+        check(name + ": first build", built && Files.isRegularFile(mainVm) && Files.isRegularFile(pointVm), log);
+        if (!built) return;
+        String before = read(pointVm), other = read(mainVm);
+
+        write(point, "class Point { function int f() { return 2; } }");
+        boolean rebuilt = await(() -> !read(pointVm).equals(before));
+        check(name + ": edited class is compiled again", rebuilt && read(pointVm).contains("push constant 2"), log);
+        check(name + ": other class is left alone", read(mainVm).equals(other), log);
+        watcher.interrupt();
+    }
+
+    private interface Condition {
+        boolean holds() throws IOException;
+    }
+
+    /**
+     * Waits until the condition holds, or until {@link #TIMEOUT} milliseconds have passed.
+     */
+    private static boolean await(Condition condition) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static void check(String name, boolean ok, ByteArrayOutputStream log) {
+        cases++;
+        if (ok) return;
+        failures++;
+        System.out.println("FAIL " + name + "\n  watcher output:\n" + log.toString(StandardCharsets.UTF_8).indent(4));
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return Files.isRegularFile(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : "";
+    }
+}